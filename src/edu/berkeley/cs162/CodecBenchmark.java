@@ -0,0 +1,109 @@
+/**
+ * Benchmark of the XML and binary message codecs
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Compares encode and decode throughput of the XML and binary forms of
+ * KVMessage, as framed on the wire (see MessageFramer), for a small
+ * request, a put carrying a value and a response.
+ *
+ * Each measurement runs untimed first so that the JIT has compiled the
+ * code being measured, and every result is folded into a checksum so that
+ * the work cannot be optimized away.
+ *
+ * USAGE: CodecBenchmark [iterations] [valueBytes]
+ */
+public class CodecBenchmark {
+	static final String[] CODECS = { "xml", "binary" };
+
+	// Keeps results reachable so the JIT cannot drop the work
+	static long checksum = 0;
+
+	public static void main(String[] args) throws KVException {
+		int iterations = 20000;
+		int valueBytes = 1024;
+		if (args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			valueBytes = Integer.parseInt(args[1]);
+		}
+
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < valueBytes; i++) {
+			value.append((char) ('a' + i % 26));
+		}
+		KVMessage get = new KVMessage("getreq", KVMessage.marshal("key-42"), null);
+		get.setRequestId("42");
+		KVMessage put = new KVMessage("putreq", KVMessage.marshal("key-42"), KVMessage.marshal(value.toString()));
+		put.setRequestId("43");
+		KVMessage resp = new KVMessage("resp", null, null, "True", "Success");
+		resp.setTpcOpId("7");
+		resp.setRequestId("43");
+
+		String[] names = { "getreq", "putreq", "resp" };
+		KVMessage[] messages = { get, put, resp };
+		for (int m = 0; m < messages.length; m++) {
+			for (String codec : CODECS) {
+				boolean binary = codec.equals("binary");
+				byte[] payload = MessageFramer.encode(messages[m], binary);
+
+				encodeThroughput(messages[m], binary, iterations / 4);
+				double encodes = encodeThroughput(messages[m], binary, iterations);
+				decodeThroughput(payload, iterations / 4);
+				double decodes = decodeThroughput(payload, iterations);
+
+				System.out.println("message=" + names[m] + " codec=" + codec + " bytes=" + payload.length
+						+ " encodes/s=" + Math.round(encodes) + " decodes/s=" + Math.round(decodes));
+			}
+		}
+		System.out.println("checksum=" + checksum);
+	}
+
+	private static double encodeThroughput(KVMessage message, boolean binary, int iterations) throws KVException {
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sum += MessageFramer.frame(message, binary).limit();
+		}
+		long elapsed = System.nanoTime() - start;
+		checksum += sum;
+		return iterations / (elapsed / 1e9);
+	}
+
+	private static double decodeThroughput(byte[] payload, int iterations) throws KVException {
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sum += MessageFramer.decode(payload, 0, payload.length).getMsgType().length();
+		}
+		long elapsed = System.nanoTime() - start;
+		checksum += sum;
+		return iterations / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,525 @@
+/**
+ * Pool of keep-alive connections shared by clients
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Keep-alive connections to any number of servers, shared by every client
+ * that talks to them, so that a request only pays for a connect when no
+ * open connection to its server is available.
+ *
+ * Each server (endpoint) has between minConnections and maxConnections
+ * open KVConnections. Since a KVConnection pipelines, a request goes to the
+ * connection with the fewest unanswered requests, and a new connection is
+ * only opened when all of them are busy and the endpoint is below its
+ * maximum.
+ *
+ * A connection that has failed, which its reader thread notices as soon as
+ * the server closes it or the socket breaks, is dropped the next time the
+ * endpoint is used. A background thread also closes connections that have
+ * been idle for idleMillis, down to minConnections, and opens connections
+ * again to bring each endpoint back up to minConnections. It pings the
+ * connections that stay open while idle and closes those that do not
+ * answer, since a server that vanished without closing its end leaves a
+ * connection that still looks open.
+ */
+public class ConnectionPool {
+	public static final int DEFAULT_MIN_CONNECTIONS = 0;
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+	// Below the server's KEEP_ALIVE_MILLIS, so that the client closes an idle
+	// connection rather than racing the server closing it under a request
+	public static final long DEFAULT_IDLE_MILLIS = MessageFramer.KEEP_ALIVE_MILLIS / 2;
+	// How long an idle connection may take to answer a ping before it is
+	// taken for dead
+	public static final int PING_TIMEOUT_MILLIS = 2000;
+
+	private static ConnectionPool shared = null;
+
+	private final int minConnections;
+	private final int maxConnections;
+	private final long idleMillis;
+	private final boolean binary;
+
+	// Guarded by itself
+	private final Map<String, Endpoint> endpoints = new HashMap<String, Endpoint>();
+	private Thread maintainer = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a pool with the default limits.
+	 */
+	public ConnectionPool() {
+		this(DEFAULT_MIN_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_MILLIS);
+	}
+
+	/**
+	 * @param minConnections connections kept open to every endpoint used
+	 * @param maxConnections most connections open to one endpoint at a time
+	 * @param idleMillis how long a connection above minConnections may go
+	 * unused before it is closed
+	 */
+	public ConnectionPool(int minConnections, int maxConnections, long idleMillis) {
+		this(minConnections, maxConnections, idleMillis, false);
+	}
+
+	/**
+	 * @param minConnections connections kept open to every endpoint used
+	 * @param maxConnections most connections open to one endpoint at a time
+	 * @param idleMillis how long a connection above minConnections may go
+	 * unused before it is closed
+	 * @param binary send requests in the binary codec rather than XML, for
+	 * servers that understand it
+	 */
+	public ConnectionPool(int minConnections, int maxConnections, long idleMillis, boolean binary) {
+		if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections) {
+			throw new IllegalArgumentException("Need 0 <= minConnections <= maxConnections and maxConnections >= 1");
+		}
+		if (idleMillis <= 0) {
+			throw new IllegalArgumentException("idleMillis must be positive");
+		}
+		this.minConnections = minConnections;
+		this.maxConnections = maxConnections;
+		this.idleMillis = idleMillis;
+		this.binary = binary;
+	}
+
+	/**
+	 * @return the pool used by clients that do not bring their own, created
+	 * with the default limits on first use
+	 */
+	public static synchronized ConnectionPool getShared() {
+		if (shared == null) {
+			shared = new ConnectionPool();
+		}
+		return shared;
+	}
+
+	/**
+	 * Opens connections to an endpoint up to minConnections, and at least
+	 * one, so that its first request does not wait for a connect.
+	 * @param host server to connect to
+	 * @param port port the server listens on
+	 * @throws IOException if no connection could be opened
+	 */
+	public void warm(String host, int port) throws IOException {
+		endpoint(host, port).fill(Math.max(minConnections, 1));
+	}
+
+	/**
+	 * Sends a request over a pooled connection without waiting for its
+	 * response.
+	 * @param host server to send to
+	 * @param port port the server listens on
+	 * @param request the request
+	 * @return the response, once it arrives
+	 * @throws IOException if the server cannot be reached or the request
+	 * could not be sent
+	 * @throws KVException if the request cannot be encoded
+	 */
+	public CompletableFuture<KVMessage> sendAsync(String host, int port, KVMessage request) throws IOException, KVException {
+		final Pooled pooled = endpoint(host, port).acquire();
+		CompletableFuture<KVMessage> response;
+		try {
+			response = pooled.connection.sendAsync(request);
+		} catch (IOException e) {
+			pooled.outstanding.decrementAndGet();
+			throw e;
+		} catch (KVException e) {
+			pooled.outstanding.decrementAndGet();
+			throw e;
+		}
+		response.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+			public void accept(KVMessage message, Throwable failure) {
+				pooled.outstanding.decrementAndGet();
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Sends a request over a pooled connection and waits for its response.
+	 * @param host server to send to
+	 * @param port port the server listens on
+	 * @param request the request
+	 * @param timeoutMillis how long to wait for the response
+	 * @return the response
+	 * @throws IOException if the server cannot be reached, the request could
+	 * not be sent or no response arrived in time
+	 * @throws KVException if the request cannot be encoded or the response
+	 * cannot be decoded
+	 */
+	public KVMessage send(String host, int port, KVMessage request, int timeoutMillis) throws IOException, KVException {
+		Pooled pooled = endpoint(host, port).acquire();
+		try {
+			return pooled.connection.send(request, timeoutMillis);
+		} finally {
+			pooled.outstanding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param host server
+	 * @param port port the server listens on
+	 * @return number of open connections to the endpoint
+	 */
+	public int getOpenConnections(String host, int port) {
+		Endpoint endpoint;
+		synchronized (endpoints) {
+			endpoint = endpoints.get(host + ":" + port);
+		}
+		return endpoint == null ? 0 : endpoint.size();
+	}
+
+	/**
+	 * Closes every connection and stops the background thread. Requests
+	 * still waiting for a response fail; later requests throw
+	 * IllegalStateException.
+	 */
+	public void close() {
+		List<Endpoint> closing;
+		synchronized (endpoints) {
+			closed = true;
+			closing = new ArrayList<Endpoint>(endpoints.values());
+			endpoints.clear();
+			if (maintainer != null) {
+				maintainer.interrupt();
+			}
+		}
+		for (Endpoint endpoint : closing) {
+			endpoint.closeAll();
+		}
+	}
+
+	private Endpoint endpoint(String host, int port) {
+		String name = host + ":" + port;
+		synchronized (endpoints) {
+			if (closed) {
+				throw new IllegalStateException("ConnectionPool is closed");
+			}
+			Endpoint endpoint = endpoints.get(name);
+			if (endpoint == null) {
+				endpoint = new Endpoint(host, port);
+				endpoints.put(name, endpoint);
+				startMaintainer();
+			}
+			return endpoint;
+		}
+	}
+
+	private void startMaintainer() {
+		if (maintainer != null) {
+			return;
+		}
+		maintainer = new Thread(new Runnable() {
+			public void run() {
+				long period = Math.max(idleMillis / 2, 1);
+				while (!closed) {
+					try {
+						Thread.sleep(period);
+					} catch (InterruptedException e) {
+						return;
+					}
+					List<Endpoint> current;
+					synchronized (endpoints) {
+						current = new ArrayList<Endpoint>(endpoints.values());
+					}
+					for (Endpoint endpoint : current) {
+						endpoint.maintain();
+					}
+				}
+			}
+		}, "ConnectionPool-maintainer");
+		maintainer.setDaemon(true);
+		maintainer.start();
+	}
+
+	/**
+	 * The open connections to one server.
+	 */
+	private class Endpoint {
+		final String host;
+		final int port;
+		// Guarded by this
+		final List<Pooled> connections = new ArrayList<Pooled>();
+		// Connects in progress, counted against maxConnections
+		int opening = 0;
+
+		Endpoint(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * @return the least busy healthy connection, with the caller's
+		 * request counted as outstanding on it, opening a new one if every
+		 * connection has requests outstanding and there is room. The connect
+		 * runs outside the lock, so other requests keep using the open
+		 * connections meanwhile.
+		 * @throws IOException if there is no connection and none could be
+		 * opened
+		 */
+		Pooled acquire() throws IOException {
+			synchronized (this) {
+				while (true) {
+					Pooled least = leastBusy();
+					boolean room = connections.size() + opening < maxConnections;
+					if (least != null && (least.outstanding.get() == 0 || !room)) {
+						return borrow(least);
+					}
+					if (room) {
+						// Reserve the slot so concurrent callers do not overshoot maxConnections
+						opening++;
+						break;
+					}
+					// No connection yet, and every slot is being opened
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for a connection");
+					}
+				}
+			}
+			Pooled opened = null;
+			IOException failure = null;
+			try {
+				opened = open();
+			} catch (IOException e) {
+				failure = e;
+			}
+			synchronized (this) {
+				opening--;
+				notifyAll();
+				if (opened != null && closed) {
+					// close() ran during the connect and will not see this one
+					opened.connection.close();
+					throw new IllegalStateException("ConnectionPool is closed");
+				}
+				if (opened != null) {
+					connections.add(opened);
+					return borrow(opened);
+				}
+				Pooled least = leastBusy();
+				if (least == null) {
+					throw failure;
+				}
+				// Busy, but still usable
+				return borrow(least);
+			}
+		}
+
+		/**
+		 * Opens connections until there are at least count.
+		 * @throws IOException if the endpoint has no connection and none
+		 * could be opened
+		 */
+		void fill(int count) throws IOException {
+			while (true) {
+				synchronized (this) {
+					prune();
+					if (connections.size() + opening >= Math.min(count, maxConnections)) {
+						return;
+					}
+					opening++;
+				}
+				Pooled opened = null;
+				IOException failure = null;
+				try {
+					opened = open();
+				} catch (IOException e) {
+					failure = e;
+				}
+				synchronized (this) {
+					opening--;
+					notifyAll();
+					if (opened == null) {
+						if (connections.isEmpty()) {
+							throw failure;
+						}
+						return;
+					}
+					if (closed) {
+						opened.connection.close();
+						return;
+					}
+					connections.add(opened);
+				}
+			}
+		}
+
+		/**
+		 * Closes connections idle for too long, pings the other idle ones
+		 * and opens connections up to minConnections.
+		 */
+		void maintain() {
+			List<Pooled> idle = new ArrayList<Pooled>();
+			synchronized (this) {
+				prune();
+				long now = System.currentTimeMillis();
+				Iterator<Pooled> it = connections.iterator();
+				while (it.hasNext() && connections.size() > minConnections) {
+					Pooled pooled = it.next();
+					if (pooled.outstanding.get() == 0 && now - pooled.lastUsed >= idleMillis) {
+						it.remove();
+						pooled.connection.close();
+					}
+				}
+				long pingMillis = idleMillis / 2;
+				for (Pooled pooled : connections) {
+					if (pooled.outstanding.get() == 0 && now - Math.max(pooled.lastUsed, pooled.lastPinged) >= pingMillis) {
+						// Counted as busy, so requests prefer other connections meanwhile
+						pooled.outstanding.incrementAndGet();
+						idle.add(pooled);
+					}
+				}
+			}
+			ping(idle);
+			try {
+				fill(minConnections);
+			} catch (IOException e) {
+				// The server is down; try again on the next round
+			}
+		}
+
+		/**
+		 * Pings connections all at once and closes those that fail or do not
+		 * answer within PING_TIMEOUT_MILLIS. Any answer will do.
+		 * @param idle connections, each with the ping counted as outstanding
+		 */
+		private void ping(List<Pooled> idle) {
+			List<CompletableFuture<KVMessage>> pings = new ArrayList<CompletableFuture<KVMessage>>();
+			for (Pooled pooled : idle) {
+				CompletableFuture<KVMessage> ping = null;
+				try {
+					if (pooled.connection.isConnected()) {
+						ping = pooled.connection.sendAsync(new KVMessage("pingreq"));
+					}
+				} catch (IOException e) {
+					// Left null, so the connection is closed
+				} catch (KVException e) {
+					// Not possible for a ping
+				}
+				pings.add(ping);
+			}
+			long deadline = System.currentTimeMillis() + PING_TIMEOUT_MILLIS;
+			for (int i = 0; i < idle.size(); i++) {
+				Pooled pooled = idle.get(i);
+				CompletableFuture<KVMessage> ping = pings.get(i);
+				boolean alive = false;
+				if (ping != null) {
+					try {
+						KVConnection.await(ping, (int) Math.max(deadline - System.currentTimeMillis(), 1));
+						alive = true;
+					} catch (IOException e) {
+					} catch (KVException e) {
+						// An answer, just not one we could read
+						alive = true;
+					}
+				}
+				if (!alive) {
+					pooled.connection.close();
+				}
+				synchronized (this) {
+					pooled.lastPinged = System.currentTimeMillis();
+				}
+				pooled.outstanding.decrementAndGet();
+			}
+		}
+
+		synchronized int size() {
+			prune();
+			return connections.size();
+		}
+
+		synchronized void closeAll() {
+			for (Pooled pooled : connections) {
+				pooled.connection.close();
+			}
+			connections.clear();
+		}
+
+		// Connects without touching the list, so callers need not hold the lock
+		private Pooled open() throws IOException {
+			KVConnection connection = new KVConnection(host, port, binary);
+			connection.connect();
+			return new Pooled(connection);
+		}
+
+		private Pooled leastBusy() {
+			prune();
+			Pooled least = null;
+			for (Pooled pooled : connections) {
+				if (least == null || pooled.outstanding.get() < least.outstanding.get()) {
+					least = pooled;
+				}
+			}
+			return least;
+		}
+
+		private Pooled borrow(Pooled pooled) {
+			pooled.outstanding.incrementAndGet();
+			pooled.lastUsed = System.currentTimeMillis();
+			return pooled;
+		}
+
+		// Drops connections whose socket has failed or been closed
+		private void prune() {
+			Iterator<Pooled> it = connections.iterator();
+			while (it.hasNext()) {
+				Pooled pooled = it.next();
+				if (!pooled.connection.isConnected()) {
+					it.remove();
+					pooled.connection.close();
+				}
+			}
+		}
+	}
+
+	private static class Pooled {
+		final KVConnection connection;
+		// Requests handed this connection and not yet answered
+		final AtomicInteger outstanding = new AtomicInteger();
+		long lastUsed = System.currentTimeMillis();
+		// Guarded by the endpoint, like lastUsed
+		long lastPinged = 0;
+
+		Pooled(KVConnection connection) {
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,579 @@
+/**
+ * Event loop that serves connections through a Selector
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single thread that serves many connections through a Selector. It reads
+ * each request without blocking, decodes it, and hands it to a worker pool.
+ * The worker's response is written back by this thread, again without
+ * blocking. A connection costs no thread while its client is idle or slow,
+ * only while its request is being served.
+ *
+ * A client that sends frames (see MessageFramer) keeps its connection for
+ * further requests. Requests that carry a request id are served
+ * concurrently, up to MAX_IN_FLIGHT per connection, and each response is
+ * written as soon as it is ready, so a slow request does not hold up the
+ * ones behind it. A request without an id is served alone, so its response
+ * comes back in order. Responses use the codec, XML or binary, of the
+ * connection's first frame. An unframed request ends where the client shuts
+ * down its output, and the connection is closed after the response, as the
+ * blocking handlers do.
+ *
+ * Every loop of a server also accepts connections from the shared listening
+ * channel, so a burst of connects is accepted by all loops at once. Each
+ * accepted connection goes to the next loop in a round-robin shared by the
+ * group, whichever loop accepted it.
+ */
+class EventLoop implements Runnable {
+	private static final int READ_BUFFER_SIZE = 8192;
+	// Connections accepted per wakeup, so one loop cannot starve its own reads
+	private static final int ACCEPT_BATCH = 64;
+	// Requests of one connection served at once; further frames wait
+	private static final int MAX_IN_FLIGHT = 64;
+
+	private final Selector selector;
+	private final MessageHandler handler;
+	private final ThreadPool workers;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	// Handed over by other threads and picked up by the loop after a wakeup
+	private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<Connection> replies = new ConcurrentLinkedQueue<Connection>();
+
+	private ServerSocketChannel serverChannel = null;
+	private EventLoop[] group = null;
+	private AtomicInteger nextLoop = null;
+
+	private volatile boolean running = true;
+	private Thread thread = null;
+
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong connectionCount = new AtomicLong();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong wakeups = new AtomicLong();
+
+	/**
+	 * @param handler serves the decoded requests
+	 * @param workers pool the requests are served on; with the BLOCK policy
+	 * a full pool stalls this loop, so reads stop until workers catch up
+	 * @throws IOException if no Selector can be opened
+	 */
+	EventLoop(MessageHandler handler, ThreadPool workers) throws IOException {
+		this.selector = Selector.open();
+		this.handler = handler;
+		this.workers = workers;
+	}
+
+	/**
+	 * Makes this loop accept connections as well. Must be called before the
+	 * loop is started.
+	 * @param serverChannel the listening channel, in non-blocking mode; all
+	 * loops of a group share it
+	 * @param group the loops accepted connections are spread over
+	 * @param nextLoop round-robin position shared by the group
+	 * @throws IOException if the channel cannot be registered
+	 */
+	void listen(ServerSocketChannel serverChannel, EventLoop[] group, AtomicInteger nextLoop) throws IOException {
+		this.serverChannel = serverChannel;
+		this.group = group;
+		this.nextLoop = nextLoop;
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Starts the loop's thread.
+	 * @param name name of the thread
+	 */
+	void start(String name) {
+		thread = new Thread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Hands a newly accepted connection to this loop. Safe to call from any
+	 * thread.
+	 * @param channel the connection
+	 */
+	void register(SocketChannel channel) {
+		accepted.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the loop and closes its connections. Requests still being served
+	 * get no response.
+	 */
+	void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Waits for the loop's thread to finish.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void join() throws InterruptedException {
+		thread.join();
+	}
+
+	/**
+	 * @return a snapshot of this loop's counters
+	 */
+	SocketServer.LoopStats getStats() {
+		return new SocketServer.LoopStats(thread == null ? "EventLoop" : thread.getName(), 
+				acceptedCount.get(), connectionCount.get(), openConnections.get(), 
+				requestCount.get(), bytesRead.get(), bytesWritten.get(), wakeups.get());
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			wakeups.incrementAndGet();
+			registerAccepted();
+			sendReplies();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection) key.attachment();
+				if (key.isReadable()) {
+					connection.read();
+				} else if (key.isWritable()) {
+					connection.write();
+				}
+			}
+		}
+
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null) {
+				((Connection) key.attachment()).close();
+			}
+		}
+		SocketChannel channel;
+		while ((channel = accepted.poll()) != null) {
+			closeQuietly(channel);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void accept() {
+		for (int i = 0; i < ACCEPT_BATCH; i++) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				// For instance out of file descriptors; try again next wakeup
+				e.printStackTrace();
+				return;
+			}
+			if (channel == null) {
+				// Another loop got there first, or the backlog is empty
+				return;
+			}
+			acceptedCount.incrementAndGet();
+			EventLoop target = group[(nextLoop.getAndIncrement() & 0x7fffffff) % group.length];
+			if (target == this) {
+				addConnection(channel);
+			} else {
+				target.register(channel);
+			}
+		}
+	}
+
+	private void registerAccepted() {
+		SocketChannel channel;
+		while ((channel = accepted.poll()) != null) {
+			addConnection(channel);
+		}
+	}
+
+	private void addConnection(SocketChannel channel) {
+		try {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connectionCount.incrementAndGet();
+			openConnections.incrementAndGet();
+		} catch (IOException e) {
+			closeQuietly(channel);
+		}
+	}
+
+	private void sendReplies() {
+		Connection connection;
+		while ((connection = replies.poll()) != null) {
+			connection.write();
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * State of one connection. Only the loop's thread reads and writes the
+	 * channel; workers hand back responses through the outbound queue.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		SelectionKey key = null;
+		// Bytes received but not yet decoded; allocated once data arrives
+		ByteBuffer inbound = null;
+		// Known from the first byte received
+		boolean framed = false;
+		// Known from the first frame, and used for every response; set
+		// before any request starts, so workers see it
+		boolean binary = false;
+		boolean codecKnown = false;
+		boolean inputClosed = false;
+		// Requests dispatched whose responses have not started to be written
+		int inFlight = 0;
+		// A request without an id is in flight, so nothing else may start
+		boolean ordered = false;
+		// A complete frame is waiting for room, so reading is paused
+		boolean stalled = false;
+		// The waiting frame, decoded, or the error it decoded to
+		KVMessage head = null;
+		KVException headError = null;
+		// Encoded responses from the workers, in the order they finished
+		final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		ByteBuffer writing = null;
+		volatile boolean closeRequested = false;
+		boolean closed = false;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() {
+			readBuffer.clear();
+			int read;
+			try {
+				read = channel.read(readBuffer);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (read > 0) {
+				bytesRead.addAndGet(read);
+				readBuffer.flip();
+				if (!append(readBuffer)) {
+					close();
+					return;
+				}
+				if (framed) {
+					nextFrames();
+				}
+			} else if (read < 0) {
+				inputClosed = true;
+				if (framed) {
+					nextFrames();
+				} else if (inbound == null) {
+					// Connected and left without a request
+					close();
+				} else {
+					// The client shut down its output, so the request is complete
+					try {
+						start(MessageFramer.decode(inbound.array(), 0, inbound.position()), true);
+					} catch (KVException e) {
+						inFlight++;
+						send(new KVMessage("resp", e.getMsg().getMessage()));
+					}
+					inbound = null;
+					updateInterest();
+				}
+			}
+		}
+
+		/**
+		 * @return false if the connection sent more than a frame can hold
+		 */
+		private boolean append(ByteBuffer data) {
+			if (inbound == null) {
+				inbound = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, data.remaining()));
+				framed = MessageFramer.isFramed(data.get(data.position()));
+			}
+			int needed = inbound.position() + data.remaining();
+			if (needed > MessageFramer.HEADER_BYTES + MessageFramer.MAX_FRAME_BYTES) {
+				return false;
+			}
+			if (needed > inbound.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, 2 * inbound.capacity()));
+				inbound.flip();
+				larger.put(inbound);
+				inbound = larger;
+			}
+			inbound.put(data);
+			return true;
+		}
+
+		/**
+		 * Dispatches the complete frames that have arrived, as far as the
+		 * in-flight limit and ordering allow.
+		 */
+		private void nextFrames() {
+			stalled = false;
+			while (inbound != null && inbound.position() >= MessageFramer.HEADER_BYTES) {
+				int length = inbound.getInt(0);
+				if (length < 0 || length > MessageFramer.MAX_FRAME_BYTES) {
+					close();
+					return;
+				}
+				int end = MessageFramer.HEADER_BYTES + length;
+				if (inbound.position() < end) {
+					break;
+				}
+				if (!codecKnown) {
+					binary = length > 0 && MessageFramer.isBinary(inbound.array(), MessageFramer.HEADER_BYTES);
+					codecKnown = true;
+				}
+				if (head == null && headError == null) {
+					try {
+						head = MessageFramer.decode(inbound.array(), MessageFramer.HEADER_BYTES, length);
+					} catch (KVException e) {
+						headError = e;
+					}
+				}
+				// A frame that cannot be decoded is answered in order too
+				boolean inOrder = head == null || head.getRequestId() == null;
+				if (ordered || inFlight >= MAX_IN_FLIGHT || (inOrder && inFlight > 0)) {
+					stalled = true;
+					break;
+				}
+				inbound.flip();
+				inbound.position(end);
+				inbound.compact();
+				if (head != null) {
+					start(head, inOrder);
+				} else {
+					inFlight++;
+					ordered = true;
+					send(new KVMessage("resp", headError.getMsg().getMessage()));
+				}
+				head = null;
+				headError = null;
+			}
+			finishIfDone();
+			updateInterest();
+		}
+
+		private void start(KVMessage message, boolean inOrder) {
+			inFlight++;
+			if (inOrder) {
+				ordered = true;
+			}
+			requestCount.incrementAndGet();
+
+			try {
+				workers.addToQueue(new Request(this, message));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+			}
+		}
+
+		/**
+		 * Queues a response to be written by the loop. Safe to call from any
+		 * thread; the response is encoded on the caller's thread.
+		 * @param message the response, or null to close without answering
+		 */
+		void send(KVMessage message) {
+			ByteBuffer encoded = null;
+			if (message != null) {
+				try {
+					encoded = framed ? MessageFramer.frame(message, binary) : ByteBuffer.wrap(MessageFramer.encode(message));
+				} catch (KVException e) {
+					e.printStackTrace();
+				}
+			}
+			if (encoded == null) {
+				closeRequested = true;
+			} else {
+				outbound.add(encoded);
+			}
+			replies.add(this);
+			selector.wakeup();
+		}
+
+		/**
+		 * Writes queued responses until they are all written or the socket
+		 * buffer is full.
+		 */
+		void write() {
+			if (closed) {
+				return;
+			}
+			if (closeRequested) {
+				close();
+				return;
+			}
+			boolean finished = false;
+			while (true) {
+				if (writing == null) {
+					writing = outbound.poll();
+					if (writing == null) {
+						break;
+					}
+					inFlight--;
+					if (inFlight == 0) {
+						ordered = false;
+					}
+					finished = true;
+				}
+				try {
+					bytesWritten.addAndGet(channel.write(writing));
+				} catch (IOException e) {
+					close();
+					return;
+				}
+				if (writing.hasRemaining()) {
+					break;
+				}
+				writing = null;
+				if (!framed) {
+					// One request per connection, as with the blocking handlers
+					close();
+					return;
+				}
+			}
+			if (finished && framed) {
+				// Room for frames that were waiting
+				nextFrames();
+			} else {
+				updateInterest();
+			}
+		}
+
+		private void finishIfDone() {
+			if (inputClosed && inFlight == 0 && writing == null && outbound.isEmpty()) {
+				close();
+			}
+		}
+
+		private void updateInterest() {
+			if (closed) {
+				return;
+			}
+			int ops = 0;
+			if (writing != null) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (!inputClosed && !stalled) {
+				ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			openConnections.decrementAndGet();
+			if (key != null) {
+				key.cancel();
+			}
+			closeQuietly(channel);
+		}
+	}
+
+	/**
+	 * A decoded request waiting for, or running on, a worker.
+	 */
+	private class Request implements ThreadPool.Rejectable, ThreadPool.Prioritized {
+		private final Connection connection;
+		private final KVMessage message;
+
+		Request(Connection connection, KVMessage message) {
+			this.connection = connection;
+			this.message = message;
+		}
+
+		public int getLane() {
+			return handler.getLane(message);
+		}
+
+		public void run() {
+			KVMessage response = null;
+			try {
+				response = handler.process(message);
+			} catch (RuntimeException e) {
+				// Close the connection rather than leave the client waiting
+				e.printStackTrace();
+			}
+			if (response != null) {
+				response.setRequestId(message.getRequestId());
+			}
+			connection.send(response);
+		}
+
+		/**
+		 * The pool has no room for this request; tell the client instead of
+		 * leaving it waiting.
+		 */
+		public void reject() {
+			KVMessage response = new KVMessage("resp", "Overloaded");
+			response.setRequestId(message.getRequestId());
+			connection.send(response);
+		}
+	}
+}
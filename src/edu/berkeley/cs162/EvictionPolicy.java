@@ -0,0 +1,127 @@
+/**
+ * Eviction policy of a KVCache segment
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Decides which entry a KVCache segment drops when it grows past its 
+ * capacity. A policy only orders entries; the segment owns the key lookup 
+ * and calls back into the policy on every insert, hit and removal. Calls are 
+ * made with the segment lock held, so implementations need no locking.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+abstract class EvictionPolicy<K, V> {
+	
+	/**
+	 * A cached mapping. The policy links it into one of its queues.
+	 */
+	static class Entry<K, V> {
+		final K key;
+		V value;
+		Entry<K, V> prev;
+		Entry<K, V> next;
+		// Which of the policy's queues this entry is currently linked into
+		int queue;
+		// Share of the segment capacity this entry uses
+		int weight = 1;
+		
+		Entry(K key, V value) {
+			this.key = key;
+			this.value = value;
+			this.prev = this;
+			this.next = this;
+		}
+	}
+	
+	/**
+	 * Intrusive doubly-linked list of entries, oldest first. All operations 
+	 * are constant time.
+	 */
+	static class AccessQueue<K, V> {
+		// Sentinel of the circular list: head.next is the oldest entry, head.prev the newest
+		private final Entry<K, V> head = new Entry<K, V>(null, null);
+		
+		boolean isEmpty() {
+			return head.next == head;
+		}
+		
+		Entry<K, V> peekFirst() {
+			return isEmpty() ? null : head.next;
+		}
+		
+		void linkLast(Entry<K, V> entry) {
+			entry.prev = head.prev;
+			entry.next = head;
+			head.prev.next = entry;
+			head.prev = entry;
+		}
+		
+		void moveToLast(Entry<K, V> entry) {
+			unlink(entry);
+			linkLast(entry);
+		}
+		
+		static <K, V> void unlink(Entry<K, V> entry) {
+			entry.prev.next = entry.next;
+			entry.next.prev = entry.prev;
+			entry.prev = entry;
+			entry.next = entry;
+		}
+	}
+	
+	/**
+	 * A new entry has been added to the segment.
+	 */
+	abstract void recordInsert(Entry<K, V> entry);
+	
+	/**
+	 * An existing entry has been read or overwritten.
+	 */
+	abstract void recordAccess(Entry<K, V> entry);
+	
+	/**
+	 * An existing entry has been overwritten and its weight may have changed.
+	 * @param oldWeight the weight of the entry before the update
+	 */
+	void recordUpdate(Entry<K, V> entry, int oldWeight) {
+		recordAccess(entry);
+	}
+	
+	/**
+	 * An entry has been explicitly deleted from the segment.
+	 */
+	abstract void recordRemoval(Entry<K, V> entry);
+	
+	/**
+	 * Chooses and unlinks the entry to drop. Only called when the total 
+	 * weight of the segment is over capacity, so at least one entry is linked.
+	 * @return the evicted entry
+	 */
+	abstract Entry<K, V> evict();
+}
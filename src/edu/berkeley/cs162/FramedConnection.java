@@ -0,0 +1,387 @@
+/**
+ * Serves one connection of a blocking handler on its thread pool
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A connection of a blocking handler (KVClientHandler, TPCMasterHandler),
+ * served on the handler's pool with the handler's process(). The first byte
+ * tells whether the client sends frames, in which case the connection stays
+ * open for further requests; otherwise it carries one request and is closed
+ * after the response.
+ *
+ * A connection holds a thread only while a request is arriving or being
+ * served. Until then it is parked with the IdleWatcher, a single Selector
+ * thread shared by all handlers, which queues it for the pool once bytes
+ * arrive and closes it after KEEP_ALIVE_MILLIS without any. Sockets without
+ * a channel cannot be parked and block a thread while they wait instead.
+ */
+class FramedConnection implements ThreadPool.Rejectable, ThreadPool.Prioritized {
+	private final Socket socket;
+	private final MessageHandler handler;
+	private final ThreadPool threadpool;
+
+	private KVMessage message = null;
+	private PushbackInputStream in = null;
+	// Set if the first byte shows the client sends frames
+	private boolean framed = false;
+	private DataInputStream framedIn = null;
+	// Set if the first frame uses the binary codec, which replies then use
+	private boolean binary = false;
+	private boolean served = false;
+	// When the connection was last handed to the IdleWatcher
+	private long parkedAt = 0;
+
+	/**
+	 * @param socket the accepted connection
+	 * @param handler serves the requests
+	 * @param threadpool pool the requests are read and served on
+	 */
+	FramedConnection(Socket socket, MessageHandler handler, ThreadPool threadpool) {
+		this.socket = socket;
+		this.handler = handler;
+		this.threadpool = threadpool;
+	}
+
+	/**
+	 * Starts serving the connection: it is queued for the pool as soon as
+	 * its first request starts arriving, so a slow client holds up neither
+	 * the acceptor nor a worker.
+	 * @throws InterruptedException if queueing a socket without a channel
+	 * is interrupted
+	 */
+	void start() throws InterruptedException {
+		if (!park()) {
+			threadpool.addToQueue(this);
+		}
+	}
+
+	/**
+	 * Hands the connection to the IdleWatcher until its next request
+	 * arrives.
+	 * @return false if the socket has no channel and cannot be parked
+	 */
+	private boolean park() {
+		if (socket.getChannel() == null) {
+			return false;
+		}
+		parkedAt = System.currentTimeMillis();
+		IdleWatcher.get().watch(this);
+		return true;
+	}
+
+	/**
+	 * Reads the next request, or answers with the parse error.
+	 * @return false once the connection has no more requests
+	 */
+	private boolean readMessage() throws IOException {
+		message = null;
+		if (in == null) {
+			in = new PushbackInputStream(socket.getInputStream());
+			int first = in.read();
+			if (first < 0) {
+				return false;
+			}
+			in.unread(first);
+			if (MessageFramer.isFramed(first)) {
+				framed = true;
+				framedIn = new DataInputStream(new BufferedInputStream(in));
+				// Only bounds a frame that stops halfway; idle time is the
+				// IdleWatcher's
+				socket.setSoTimeout(MessageFramer.KEEP_ALIVE_MILLIS);
+				binary = MessageFramer.peekBinary(framedIn);
+			}
+		}
+
+		try {
+			if (framed) {
+				message = MessageFramer.read(framedIn);
+				return message != null;
+			}
+			if (served) {
+				return false;
+			}
+			served = true;
+			message = new KVMessage(in);
+		} catch (KVException e) {
+			//If there's an error getting the message, send this back
+			reply(new KVMessage("resp", e.getMsg().getMessage()));
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a response, framed if the client sends frames.
+	 * @param response the response, or null to send nothing
+	 * @return true if the connection can carry further requests
+	 */
+	private boolean reply(KVMessage response) {
+		if (response == null) {
+			return false;
+		}
+		try {
+			if (framed) {
+				MessageFramer.write(socket.getOutputStream(), response, binary);
+				return true;
+			}
+			FilterOutputStream fos = new FilterOutputStream(socket.getOutputStream());
+			fos.write(response.toXML().getBytes());
+			fos.flush();
+			socket.shutdownOutput();
+		} catch (IOException e) {
+			// The client has gone; nothing to tell it
+		} catch (KVException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * The pool has no room for this request; tell the client instead of
+	 * leaving it waiting, and close the connection. Before a request has
+	 * been read the answer is not framed, which framed clients accept.
+	 * Refused before or between requests, the answer has no request id
+	 * and turns the whole connection away: KVConnection then answers
+	 * every request pending on it "Overloaded" at once.
+	 */
+	public void reject() {
+		KVMessage response = new KVMessage("resp", "Overloaded");
+		if (message != null) {
+			response.setTpcOpId(message.getTpcOpId());
+			response.setRequestId(message.getRequestId());
+		}
+		reply(response);
+		close();
+	}
+
+	/**
+	 * Until the request is read its type is unknown. A parked connection is
+	 * only queued once its request is arriving, so reading it goes in the
+	 * high lane; a socket without a channel may still be idle, so it waits
+	 * in the low lane. Afterwards the request goes in the lane of its type.
+	 */
+	public int getLane() {
+		if (message == null) {
+			return socket.getChannel() != null ? ThreadPool.LANE_HIGH : ThreadPool.LANE_LOW;
+		}
+		return handler.getLane(message);
+	}
+
+	public void run() {
+		try {
+			// Requests are served one at a time, so pipelined requests are
+			// answered in order. The connection was queued because its next
+			// request is arriving, so it is read before parking again
+			while (true) {
+				if (message == null) {
+					if (!readMessage()) {
+						break;
+					}
+					if (message != null && threadpool.getMode() == ThreadPool.Mode.PRIORITY_LANES
+							&& handler.getLane(message) != ThreadPool.LANE_HIGH) {
+						// Queue again, now in the lane of the message type
+						threadpool.addToQueue(this);
+						return;
+					}
+				}
+				// Null if the request did not parse and has been answered
+				if (message != null) {
+					KVMessage response = handler.process(message);
+					if (response != null) {
+						response.setRequestId(message.getRequestId());
+					}
+					message = null;
+					if (!reply(response)) {
+						break;
+					}
+				}
+				if (framed && framedIn.available() == 0 && park()) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			// Also how a framed connection that stops halfway ends
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		close();
+	}
+
+	private void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The Selector thread that parked connections wait on. A connection is
+	 * registered for reading while it is parked and handed back to its
+	 * pool, in blocking mode, once it is readable or has reached its end.
+	 * With the BLOCK policy a full pool stalls the watcher, pushing back on
+	 * clients as the acceptor would.
+	 */
+	private static class IdleWatcher implements Runnable {
+		// How often parked connections are checked for KEEP_ALIVE_MILLIS
+		private static final long SCAN_MILLIS = 1000;
+
+		private static IdleWatcher watcher = null;
+
+		private final Selector selector;
+		// Handed over by the workers and registered after a wakeup
+		private final ConcurrentLinkedQueue<FramedConnection> arrivals = new ConcurrentLinkedQueue<FramedConnection>();
+
+		private IdleWatcher() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * @return the shared watcher, started on first use
+		 */
+		static synchronized IdleWatcher get() {
+			if (watcher == null) {
+				try {
+					watcher = new IdleWatcher();
+				} catch (IOException e) {
+					throw new IllegalStateException("Cannot open a Selector", e);
+				}
+				Thread thread = new Thread(watcher, "FramedConnection-IdleWatcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			return watcher;
+		}
+
+		/**
+		 * Parks a connection until its next request arrives. The caller
+		 * must not touch the connection afterwards.
+		 * @param connection connection that has no request buffered
+		 */
+		void watch(FramedConnection connection) {
+			arrivals.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			long lastScan = System.currentTimeMillis();
+			try {
+				while (true) {
+					selector.select(SCAN_MILLIS);
+					register();
+					List<FramedConnection> ready = new ArrayList<FramedConnection>();
+					// A channel can only go back to blocking mode once its
+					// cancelled key is deregistered, which the next select
+					// does; that select may find further ready keys
+					do {
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							key.cancel();
+							ready.add((FramedConnection) key.attachment());
+						}
+						selector.selectNow();
+					} while (!selector.selectedKeys().isEmpty());
+					for (FramedConnection connection : ready) {
+						resume(connection);
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastScan >= SCAN_MILLIS) {
+						lastScan = now;
+						expire(now);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (ClosedSelectorException e) {
+				// Never closed while the process runs
+			}
+		}
+
+		/**
+		 * Registers the connections parked since the last wakeup.
+		 */
+		private void register() {
+			FramedConnection connection;
+			while ((connection = arrivals.poll()) != null) {
+				try {
+					SocketChannel channel = connection.socket.getChannel();
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					connection.close();
+				}
+			}
+		}
+
+		/**
+		 * Queues a connection whose request is arriving for its pool.
+		 */
+		private void resume(FramedConnection connection) {
+			try {
+				connection.socket.getChannel().configureBlocking(true);
+				connection.threadpool.addToQueue(connection);
+			} catch (IOException e) {
+				connection.close();
+			} catch (InterruptedException e) {
+				// Nothing interrupts the watcher; drop the connection rather
+				// than leave it unserved
+				connection.close();
+			}
+		}
+
+		/**
+		 * Closes the connections parked for KEEP_ALIVE_MILLIS or longer.
+		 * @param now current time in milliseconds
+		 */
+		private void expire(long now) {
+			for (SelectionKey key : selector.keys()) {
+				FramedConnection connection = (FramedConnection) key.attachment();
+				if (key.isValid() && now - connection.parkedAt >= MessageFramer.KEEP_ALIVE_MILLIS) {
+					key.cancel();
+					connection.close();
+				}
+			}
+		}
+	}
+}
@@ -28,30 +28,216 @@
 package edu.berkeley.cs162;
 
 import java.io.Serializable;
-
-import java.net.*;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.concurrent.locks.Lock;
+
 /**
  * An LRU cache which has a fixed maximum number of elements (cacheSize).
  * If the cache is full and another entry is added, the LRU (least recently used) entry is dropped.
+ * 
+ * Entries are kept in a HashMap and threaded onto intrusive doubly-linked 
+ * lists in access order, so get, put and del are all constant time: moving an 
+ * entry to the MRU end or unlinking it never scans a list. Which entry is 
+ * dropped is decided by the EvictionPolicy; besides plain LRU, a W-TinyLFU 
+ * policy is available that keeps frequently used keys cached across scans.
+ * 
+ * The cache can be split into several independently locked segments. Keys are 
+ * hashed to a segment, and each segment keeps its own eviction order and an 
+ * equal share of cacheSize, so operations on keys in different segments never 
+ * contend. Eviction order is then only exact within a segment.
+ * 
+ * A cache created with withMaxBytes is bounded by the estimated heap its 
+ * keys and values retain instead of by entry count, so its footprint stays 
+ * predictable no matter how large the values are.
  */
 public class KVCache<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V>{
-	private int cacheSize;
-	private HashMap<K,V> cache;
-	private LinkedList<K> order;
+	// Estimated bytes a cached mapping costs besides its key and value (HashMap node and Entry)
+	private static final int ENTRY_OVERHEAD = 80;
+	
+	private final Segment<K, V>[] segments;
+
+	/**
+	 * Eviction policies a KVCache can be built with.
+	 */
+	public enum Policy {
+		/** Evict the least recently used entry. */
+		LRU,
+		/** W-TinyLFU: admit entries into the main space by estimated access frequency. */
+		TINY_LFU;
+		
+		<K, V> EvictionPolicy<K, V> newInstance(long capacity) {
+			if (this == TINY_LFU) {
+				return new TinyLFUPolicy<K, V>(capacity);
+			}
+			return new LRUPolicy<K, V>();
+		}
+	}
+	
+	/**
+	 * An independently locked slice of the cache with its own eviction order.
+	 * Capacity is measured in weight: one per entry, or the estimated 
+	 * retained bytes of each entry for byte-budgeted caches.
+	 */
+	private static class Segment<K, V> {
+		private final long capacity;
+		private final boolean weighBytes;
+		private final HashMap<K, EvictionPolicy.Entry<K, V>> map;
+		private final EvictionPolicy<K, V> policy;
+		private long weightedSize = 0;
+		
+		Segment(long capacity, boolean weighBytes, Policy policy) {
+			this.capacity = capacity;
+			this.weighBytes = weighBytes;
+			this.map = weighBytes ? new HashMap<K, EvictionPolicy.Entry<K, V>>()
+					: new HashMap<K, EvictionPolicy.Entry<K, V>>((int) capacity);
+			this.policy = policy.newInstance(capacity);
+		}
+		
+		synchronized V get(K key) {
+			EvictionPolicy.Entry<K, V> entry = map.get(key);
+			if (entry == null) {
+				return null;
+			}
+			policy.recordAccess(entry);
+			return entry.value;
+		}
+		
+		synchronized boolean put(K key, V value) {
+			int weight = weighBytes ? estimateBytes(key, value) : 1;
+			EvictionPolicy.Entry<K, V> existing = map.get(key);
+			if (weight > capacity) {
+				// Would not fit even alone, and evicting everything else first 
+				// would only empty the segment; leave it uncached and drop any 
+				// stale copy
+				if (existing != null) {
+					del(key);
+				}
+				return existing != null;
+			}
+			if (existing != null) {
+				int oldWeight = existing.weight;
+				existing.value = value;
+				existing.weight = weight;
+				weightedSize += weight - oldWeight;
+				policy.recordUpdate(existing, oldWeight);
+				evictOverflow();
+				return true;
+			}
+			
+			EvictionPolicy.Entry<K, V> entry = new EvictionPolicy.Entry<K, V>(key, value);
+			entry.weight = weight;
+			map.put(key, entry);
+			weightedSize += weight;
+			policy.recordInsert(entry);
+			evictOverflow();
+			return false;
+		}
+		
+		synchronized void del(K key) {
+			EvictionPolicy.Entry<K, V> entry = map.remove(key);
+			if (entry != null) {
+				weightedSize -= entry.weight;
+				policy.recordRemoval(entry);
+			}
+		}
+		
+		synchronized int size() {
+			return map.size();
+		}
+		
+		synchronized long weightedSize() {
+			return weightedSize;
+		}
+		
+		private void evictOverflow() {
+			while (weightedSize > capacity && !map.isEmpty()) {
+				EvictionPolicy.Entry<K, V> victim = policy.evict();
+				map.remove(victim.key);
+				weightedSize -= victim.weight;
+			}
+		}
+	}
 
 	/**
 	 * Creates a new LRU cache.
 	 * @param cacheSize the maximum number of entries that will be kept in this cache.
 	 */
 	public KVCache (int cacheSize) {
-		// implement me
-		cache = new HashMap<K, V>(cacheSize);
-		order = new LinkedList<K>();
-		this.cacheSize = cacheSize;
+		this(cacheSize, 1);
+	}
+	
+	/**
+	 * Creates a new LRU cache split into independently locked segments.
+	 * @param cacheSize the maximum number of entries that will be kept in this cache.
+	 * @param segmentCount the number of segments; each holds an equal share of cacheSize.
+	 */
+	public KVCache (int cacheSize, int segmentCount) {
+		this(cacheSize, segmentCount, Policy.LRU);
+	}
+	
+	/**
+	 * Creates a new segmented cache with the given eviction policy.
+	 * @param cacheSize the maximum number of entries that will be kept in this cache.
+	 * @param segmentCount the number of segments; each holds an equal share of cacheSize.
+	 * @param policy how each segment picks the entry to evict when it is full.
+	 */
+	public KVCache (int cacheSize, int segmentCount, Policy policy) {
+		this(cacheSize, false, segmentCount, policy);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private KVCache (long capacity, boolean weighBytes, int segmentCount, Policy policy) {
+		if (segmentCount < 1) {
+			segmentCount = 1;
+		}
+		if (segmentCount > capacity && capacity > 0) {
+			segmentCount = (int) capacity;
+		}
+		// Generic arrays cannot be created directly; every element is a Segment<K, V>
+		segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			// Spread the remainder over the first segments so the shares add up to the capacity
+			long share = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+			segments[i] = new Segment<K, V>(share, weighBytes, policy);
+		}
+	}
+	
+	/**
+	 * Creates a cache bounded by the estimated heap retained by its keys and 
+	 * values rather than by the number of entries. Entries are evicted until 
+	 * the total estimate is back under maxBytes.
+	 * @param maxBytes the maximum estimated retained bytes of all cached entries.
+	 * @param segmentCount the number of segments; each holds an equal share of maxBytes.
+	 * @param policy how each segment picks the entry to evict when it is full.
+	 */
+	public static <K extends Serializable, V extends Serializable> KVCache<K, V> withMaxBytes(long maxBytes, int segmentCount, Policy policy) {
+		return new KVCache<K, V>(maxBytes, true, segmentCount, policy);
+	}
+	
+	/**
+	 * Estimates the heap retained by a cached mapping.
+	 */
+	static int estimateBytes(Object key, Object value) {
+		long bytes = ENTRY_OVERHEAD + estimateBytes(key) + estimateBytes(value);
+		return (int) Math.min(bytes, Integer.MAX_VALUE);
+	}
+	
+	private static long estimateBytes(Object o) {
+		if (o == null) {
+			return 0;
+		}
+		if (o instanceof String) {
+			// String object plus its char array
+			return 40 + 2L * ((String) o).length();
+		}
+		if (o instanceof byte[]) {
+			return 16 + ((byte[]) o).length;
+		}
+		if (o instanceof Number || o instanceof Boolean || o instanceof Character) {
+			return 16;
+		}
+		// Fall back to the serialized size (Base64 inflates by 4/3)
+		String marshalled = KVMessage.marshal((Serializable) o);
+		return marshalled == null ? 16 : 16 + marshalled.length() * 3L / 4;
 	}
 
 	/**
@@ -61,13 +247,7 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * @return the value associated to this key, or null if no value with this key exists in the cache.
 	 */
 	public V get (K key) {
-		// implement me
-		V value;
-		value = cache.get(key);
-		if (value!=null){
-			this.updateLRUOrder(key);
-		}
-		return value;
+		return segmentFor(key).get(key);
 	}
 
 	/**
@@ -75,36 +255,14 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * The new entry becomes the MRU (most recently used) entry.
 	 * If an entry with the specified key already exists in the cache, it is replaced by the new entry.
 	 * If the cache is full, the LRU (least recently used) entry is removed from the cache.
+	 * An entry heavier than its segment's whole capacity is not cached, and 
+	 * an older entry for its key is removed.
 	 * @param key    the key with which the specified value is to be associated.
 	 * @param value  a value to be associated with the specified key.
-	 * @return 
+	 * @return whether an existing entry was replaced
 	 */
 	public boolean put (K key, V value) {
-		// implement me
-		V existing = cache.get(key);
-		updateLRUOrder(key);
-
-		synchronized(cache){
-			cache.put(key, value);
-			while(cache.size()>cacheSize){
-				synchronized(order){
-					K toRemove = order.remove();
-					cache.remove(toRemove);
-				}
-			}
-		}
-
-		if (existing!=null){
-			return true;
-		}
-		else return false;
-	}
-
-	private void updateLRUOrder(K key){
-		synchronized(order){
-			order.remove(key);
-			order.add(key);
-		}
+		return segmentFor(key).put(key, value);
 	}
 
 	/**
@@ -112,17 +270,44 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * @param key the key with which the specified value is to be associated.
 	 */
 	public void del (K key) {
-		// implement me
-		synchronized(order){
-			order.remove(key);
+		segmentFor(key).del(key);
+	}
+	
+	/**
+	 * @return the number of segments this cache is split into
+	 */
+	public int segmentCount() {
+		return segments.length;
+	}
+	
+	private Segment<K, V> segmentFor(K key) {
+		if (segments.length == 1) {
+			return segments[0];
 		}
-		synchronized(cache){
-			cache.remove(key);
+		int h = key.hashCode();
+		// Mix the high bits in so keys with similar hashCodes still spread out
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	/**
+	 * @return the total weight of the cached entries: their estimated retained 
+	 * bytes for a cache created with withMaxBytes, the entry count otherwise
+	 */
+	public long filledWeight() {
+		long total = 0;
+		for (Segment<K, V> segment : segments) {
+			total += segment.weightedSize();
 		}
+		return total;
 	}
 
 	//this method for testing purposes only
 	public int filledEntries(){
-		return cache.size();
+		int total = 0;
+		for (Segment<K, V> segment : segments) {
+			total += segment.size();
+		}
+		return total;
 	}
 } // end class LRUCache
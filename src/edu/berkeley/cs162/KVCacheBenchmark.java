@@ -0,0 +1,115 @@
+/**
+ * Benchmark of KVCache hit latency
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Random;
+
+/**
+ * Measures KVCache hit latency for growing cache sizes. With constant time
+ * LRU maintenance the ns/hit figure should stay roughly flat from 1K to 1M
+ * entries. It then compares read throughput of a single segment cache with a 
+ * segmented one when every core is reading.
+ * 
+ * USAGE: KVCacheBenchmark [lookupsPerSize]
+ */
+public class KVCacheBenchmark {
+	static final int[] SIZES = { 1000, 10000, 100000, 1000000 };
+	
+	public static void main(String[] args) {
+		int lookups = 2000000;
+		if (args.length > 0) {
+			lookups = Integer.parseInt(args[0]);
+		}
+		
+		for (int size : SIZES) {
+			KVCache<String, String> cache = new KVCache<String, String>(size);
+			String[] keys = new String[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = "key" + i;
+				cache.put(keys[i], "value" + i);
+			}
+			
+			// Warm up before measuring
+			runLookups(cache, keys, lookups, new Random(1));
+			long start = System.nanoTime();
+			int hits = runLookups(cache, keys, lookups, new Random(2));
+			long elapsed = System.nanoTime() - start;
+			
+			System.out.println("entries=" + size + " hits=" + hits + " ns/hit=" + (elapsed / (double) lookups));
+		}
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int segments : new int[] { 1, threads * 4 }) {
+			System.out.println("segments=" + segments + " threads=" + threads
+					+ " hits/s=" + concurrentThroughput(segments, threads, lookups));
+		}
+	}
+	
+	private static long concurrentThroughput(int segments, int threads, final int lookups) {
+		final int size = 100000;
+		final KVCache<String, String> cache = new KVCache<String, String>(size, segments);
+		final String[] keys = new String[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = "key" + i;
+			cache.put(keys[i], "value" + i);
+		}
+		
+		Thread[] readers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			readers[t] = new Thread() {
+				public void run() {
+					runLookups(cache, keys, lookups, new Random(seed));
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread reader : readers) {
+			reader.start();
+		}
+		for (Thread reader : readers) {
+			try {
+				reader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		return (long) threads * lookups * 1000000000L / elapsed;
+	}
+	
+	private static int runLookups(KVCache<String, String> cache, String[] keys, int lookups, Random random) {
+		int hits = 0;
+		for (int i = 0; i < lookups; i++) {
+			if (cache.get(keys[random.nextInt(keys.length)]) != null) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+}
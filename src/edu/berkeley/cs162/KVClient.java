@@ -38,16 +38,26 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This class is used to communicate with (appropriately marshalling and
  * unmarshalling) objects implementing the {@link KeyValueInterface}.
+ * By default each request opens its own connection; with keep-alive 
+ * requests go as frames over pooled connections (see ConnectionPool), 
+ * shared with every other keep-alive client of the same server.
  *
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
@@ -56,244 +66,288 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 
 	private String server = null;
 	private int port = 0;
+	// Carries every request when keep-alive is on; null for a connection per request
+	private ConnectionPool pool = null;
+
+	private static final int TIMEOUT_MILLISECONDS = 60000;
+	// Fails asynchronous requests that get no response in time
+	private static final Timer timeouts = new Timer("KVClient-timeouts", true);
+	// Cancelled timeouts stay queued until they are due unless purged
+	private static final AtomicInteger cancelledTimeouts = new AtomicInteger();
+	private static final int PURGE_EVERY = 4096;
 
 	/**
 	 * @param server is the DNS reference to the Key-Value server
 	 * @param port is the port on which the Key-Value server is listening
 	 */
 	public KVClient(String server, int port) {
+		this(server, port, false);
+	}
+
+	/**
+	 * @param server is the DNS reference to the Key-Value server
+	 * @param port is the port on which the Key-Value server is listening
+	 * @param keepAlive send all requests as frames over the shared 
+	 * ConnectionPool rather than opening a connection per request
+	 */
+	public KVClient(String server, int port, boolean keepAlive) {
+		this(server, port, keepAlive ? ConnectionPool.getShared() : null);
+	}
+
+	/**
+	 * @param server is the DNS reference to the Key-Value server
+	 * @param port is the port on which the Key-Value server is listening
+	 * @param pool pool whose keep-alive connections carry all requests, or 
+	 * null to open a connection per request
+	 */
+	public KVClient(String server, int port, ConnectionPool pool) {
 		this.server = server;
 		this.port = port;
+		this.pool = pool;
 	}
 
 	@Override
 	public boolean put(K key, V value) throws KVException {
-		String keyAsString = KVMessage.marshal(key);
-		if (keyAsString.getBytes().length > 256) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Over sized key"));
-		}
+		return readPut(send(putRequest(key, value)));
+	}
 
-		String valueAsString = KVMessage.marshal(value);
-		if (valueAsString.getBytes().length > 131072) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Over sized value"));
-		}
+	@Override
+	public V get(K key) throws KVException {
+		return readGet(send(keyRequest("getreq", key)));
+	}
 
-		Socket s = null;
+	@Override
+	public void del(K key) throws KVException {
+		readDel(send(keyRequest("delreq", key)));
+	}
 
+	/**
+	 * Asynchronous put. The request is pipelined over a pooled connection 
+	 * (the shared ConnectionPool if this client does not keep connections 
+	 * alive), so no thread waits for the response.
+	 *
+	 * The future completes on the connection's reader thread, so callbacks 
+	 * attached with thenApply() and the like must not block; use the 
+	 * ...Async() variants to run them elsewhere.
+	 * @param key is the object used to index into the store
+	 * @param value is the object corresponding to a unique key
+	 * @return completes with what put() would return, or exceptionally 
+	 * with the KVException put() would throw
+	 */
+	public CompletableFuture<Boolean> putAsync(K key, V value) {
+		KVMessage request;
 		try {
-			s = new Socket(server, port);
-		} catch (UnknownHostException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not create socket"));
-		} catch (IOException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			request = putRequest(key, value);
+		} catch (KVException e) {
+			return failed(e);
 		}
-
-		//ObjectOutputStream oos = null;
-		InputStream is = null;
-
-		FilterOutputStream fos = null;
-
-		try {
-//			oos = new ObjectOutputStream(s.getOutputStream());
-//			oos.flush();
-			fos = new FilterOutputStream(s.getOutputStream());
-			fos.flush();
-		} catch (IOException e) {
-			try {
-				s.close();
-				throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		return call(request, new ResponseReader<Boolean>() {
+			public Boolean read(KVMessage response) throws KVException {
+				return readPut(response);
 			}
-		}
-
-
-
-		try {
-			is = s.getInputStream();
-
-		} catch (IOException e) {
-			try {
-				//System.out.println("Failed getting inputstream");
-				s.close();
-				throw new KVException(new KVMessage("resp", keyAsString, valueAsString, false, "Network Error: Could not send data"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", keyAsString, valueAsString, false, "IO Error"));
-			}
-		}
-
-
-		KVMessage reqMessage = new KVMessage("putreq", keyAsString, valueAsString);
-		String xml = reqMessage.toXML();
-		//System.out.println("REQUEST XML: " + xml);
-
-		try {
-			byte[] xmlBytes = xml.getBytes();
-			fos.write(xmlBytes);
-			fos.flush();
-		} catch (IOException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
-		}
+		});
+	}
 
+	/**
+	 * Asynchronous get; see putAsync().
+	 * @param key is the object used to index into the store
+	 * @return completes with what get() would return, or exceptionally 
+	 * with the KVException get() would throw
+	 */
+	public CompletableFuture<V> getAsync(K key) {
+		KVMessage request;
 		try {
-			s.shutdownOutput();
-		} catch (IOException e1) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
+			request = keyRequest("getreq", key);
+		} catch (KVException e) {
+			return failed(e);
 		}
-
-
-		try {
-			s.setSoTimeout(60000);
-		} catch (SocketException e) {
-			//System.out.println(e);
-			try {
-				s.close();
-				throw new KVException(new KVMessage("resp", null, null, null, "Network Error"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		return call(request, new ResponseReader<V>() {
+			public V read(KVMessage response) throws KVException {
+				return readGet(response);
 			}
-		}
-
+		});
+	}
 
-		KVMessage respMessage = null;
+	/**
+	 * Asynchronous del; see putAsync().
+	 * @param key is the object used to index into the store
+	 * @return completes when the key is deleted, or exceptionally with the 
+	 * KVException del() would throw
+	 */
+	public CompletableFuture<Void> delAsync(K key) {
+		KVMessage request;
 		try {
-			respMessage = new KVMessage(is);
-		} catch (SocketTimeoutException ex) {
-			try {
-				s.close();
-				throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not receive data"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
-			}
+			request = keyRequest("delreq", key);
+		} catch (KVException e) {
+			return failed(e);
 		}
+		return call(request, new ResponseReader<Void>() {
+			public Void read(KVMessage response) throws KVException {
+				readDel(response);
+				return null;
+			}
+		});
+	}
 
-		try {
-
-			s.close();
-			fos.close();
-		} catch (IOException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+	private KVMessage putRequest(K key, V value) throws KVException {
+		String keyAsString = KVMessage.marshal(key);
+		if (keyAsString.getBytes().length > 256) {
+			throw new KVException(new KVMessage("resp", null, null, null, "Over sized key"));
 		}
 
-		if (respMessage.getMessage().equals("Success")) {
-			return respMessage.getStatus();
-		} else {
-			throw new KVException(new KVMessage("resp", null, null, null, respMessage.getMessage()));
+		String valueAsString = KVMessage.marshal(value);
+		if (valueAsString.getBytes().length > 131072) {
+			throw new KVException(new KVMessage("resp", null, null, null, "Over sized value"));
 		}
 
+		return new KVMessage("putreq", keyAsString, valueAsString);
 	}
 
-	@SuppressWarnings("unchecked")
-	@Override
-	public V get(K key) throws KVException {
+	private KVMessage keyRequest(String msgType, K key) throws KVException {
 		String keyAsString = KVMessage.marshal(key);
 		if (keyAsString.getBytes().length > 256) {
 			throw new KVException(new KVMessage("resp", null, null, null, "Over sized key"));
 		}
 
-		String valueAsString = null;
+		return new KVMessage(msgType, keyAsString, null);
+	}
 
-		Socket s = null;
+	private boolean readPut(KVMessage respMessage) throws KVException {
+		checkSuccess(respMessage);
+		return respMessage.getStatus();
+	}
 
+	@SuppressWarnings("unchecked")
+	private V readGet(KVMessage respMessage) throws KVException {
+		checkSuccess(respMessage);
+		V value = null;
 		try {
-			s = new Socket(server, port);
-		} catch (UnknownHostException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not create socket"));
+			value = (V) KVMessage.unmarshal(respMessage.getValue());
 		} catch (IOException e) {
 			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		} catch (ClassNotFoundException e) {
+			throw new KVException(new KVMessage("resp", null, null, null, "Unknown Error: class not found for value"));
 		}
 
-		FilterOutputStream fos = null;
-		InputStream is = null;
-
-		try {
-			fos = new FilterOutputStream(s.getOutputStream());
-			fos.flush();
-			is = s.getInputStream();
-		} catch (IOException e) {
-			try {
-				s.close();
-				throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
-			}
-		}
+		return value;
+	}
 
+	private void readDel(KVMessage respMessage) throws KVException {
+		checkSuccess(respMessage);
+	}
 
-		KVMessage reqMessage = new KVMessage("getreq", keyAsString, valueAsString);
-		String xml = reqMessage.toXML();
-		//System.out.println("REQUEST XML: " + xml);
+	/**
+	 * @throws KVException carrying the server's error message, unless the 
+	 * response reports success
+	 */
+	private static void checkSuccess(KVMessage respMessage) throws KVException {
+		String message = respMessage.getMessage();
+		if (message == null) {
+			throw new KVException(new KVMessage("resp", null, null, null, "Unknown Error: response has no message"));
+		} else if (!message.equals("Success")) {
+			throw new KVException(new KVMessage("resp", null, null, null, message));
+		}
+	}
 
-		byte[] xmlBytes = xml.getBytes();
+	/**
+	 * Sends a request over a pooled connection, or over a new connection if 
+	 * keep-alive is off, and waits for the response.
+	 * @param reqMessage the request
+	 * @return the server's response
+	 * @throws KVException if the server cannot be reached
+	 */
+	private KVMessage send(KVMessage reqMessage) throws KVException {
+		if (pool == null) {
+			return sendOnNewSocket(reqMessage);
+		}
 
 		try {
-			fos.write(xmlBytes);
-			fos.flush();
+			return pool.send(server, port, reqMessage, TIMEOUT_MILLISECONDS);
 		} catch (IOException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
+			throw networkError(e);
 		}
+	}
 
-		try {
-			s.shutdownOutput();
-		} catch (IOException e1) {
-			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+	/**
+	 * Turns what can go wrong on the network into the KVException the 
+	 * blocking API throws.
+	 */
+	private static KVException networkError(IOException e) {
+		if (e instanceof UnknownHostException) {
+			return new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not create socket"));
+		} else if (e instanceof ConnectException) {
+			return new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		} else if (e instanceof SocketTimeoutException) {
+			return new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not receive data"));
 		}
+		return new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
+	}
 
-		try {
-			s.setSoTimeout(60000);
-		} catch (SocketException e) {
-			try {
-				s.close();
-				throw new KVException(new KVMessage("resp", null, null, null, "Network Error"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
-			}
-		}
+	/**
+	 * Reads a response into the result of an asynchronous call.
+	 */
+	private interface ResponseReader<T> {
+		public T read(KVMessage response) throws KVException;
+	}
 
-		KVMessage respMessage = null;
+	/**
+	 * Sends a request without waiting and completes the returned future 
+	 * from its response, or with a KVException if there is none within 
+	 * TIMEOUT_MILLISECONDS.
+	 */
+	private <T> CompletableFuture<T> call(KVMessage request, final ResponseReader<T> reader) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final CompletableFuture<KVMessage> response;
 		try {
-			respMessage = new KVMessage(is);
-		} catch (SocketTimeoutException ex) {
-			try {
-				s.close();
-				throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not receive data"));
-			} catch (IOException e2) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
-			}
-		}
-		
-		try{
-			s.close();
-			fos.close();
+			response = (pool == null ? ConnectionPool.getShared() : pool).sendAsync(server, port, request);
 		} catch (IOException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			return failed(networkError(e));
+		} catch (KVException e) {
+			return failed(e);
 		}
 
-		if (respMessage.getMessage().equals("Success")) {
-			V value = null;
-			try {
-				value = (V) KVMessage.unmarshal(respMessage.getValue());
-			} catch (IOException e) {
-				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
-			} catch (ClassNotFoundException e) {
-				throw new KVException(new KVMessage("resp", null, null, null, "Unknown Error: class not found for value"));
+		final TimerTask timeout = new TimerTask() {
+			public void run() {
+				response.completeExceptionally(new SocketTimeoutException());
 			}
-
-			return value;
-		} else {
-			throw new KVException(new KVMessage("resp", null, null, null, respMessage.getMessage()));
-		}
+		};
+		timeouts.schedule(timeout, TIMEOUT_MILLISECONDS);
+
+		response.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+			public void accept(KVMessage message, Throwable failure) {
+				timeout.cancel();
+				if (cancelledTimeouts.incrementAndGet() % PURGE_EVERY == 0) {
+					timeouts.purge();
+				}
+				if (failure instanceof CompletionException) {
+					failure = failure.getCause();
+				}
+				if (failure instanceof IOException) {
+					result.completeExceptionally(networkError((IOException) failure));
+				} else if (failure != null) {
+					result.completeExceptionally(failure);
+				} else {
+					try {
+						result.complete(reader.read(message));
+					} catch (KVException e) {
+						result.completeExceptionally(e);
+					} catch (RuntimeException e) {
+						// A malformed response; thrown here it would leave the future pending forever
+						result.completeExceptionally(new KVException(new KVMessage("resp", null, null, null, "Unknown Error: " + e)));
+					}
+				}
+			}
+		});
+		return result;
 	}
 
-	@Override
-	public void del(K key) throws KVException {
-		String keyAsString = KVMessage.marshal(key);
-		if (keyAsString.getBytes().length > 256) {
-			throw new KVException(new KVMessage("resp", null, null, null, "Over sized key"));
-		}
-
-		String valueAsString = null;
+	private static <T> CompletableFuture<T> failed(KVException e) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		result.completeExceptionally(e);
+		return result;
+	}
 
+	private KVMessage sendOnNewSocket(KVMessage reqMessage) throws KVException {
 		Socket s = null;
 
 		try {
@@ -304,13 +358,16 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
 		}
 
-		FilterOutputStream fos = null;
+		//ObjectOutputStream oos = null;
 		InputStream is = null;
 
+		FilterOutputStream fos = null;
+
 		try {
+//			oos = new ObjectOutputStream(s.getOutputStream());
+//			oos.flush();
 			fos = new FilterOutputStream(s.getOutputStream());
 			fos.flush();
-			is = s.getInputStream();
 		} catch (IOException e) {
 			try {
 				s.close();
@@ -322,13 +379,25 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 
 
 
-		KVMessage reqMessage = new KVMessage("delreq", keyAsString, valueAsString);
+		try {
+			is = s.getInputStream();
+
+		} catch (IOException e) {
+			try {
+				//System.out.println("Failed getting inputstream");
+				s.close();
+				throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
+			} catch (IOException e2) {
+				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			}
+		}
+
+
 		String xml = reqMessage.toXML();
 		//System.out.println("REQUEST XML: " + xml);
 
-		byte[] xmlBytes = xml.getBytes();
-
 		try {
+			byte[] xmlBytes = xml.getBytes();
 			fos.write(xmlBytes);
 			fos.flush();
 		} catch (IOException e) {
@@ -338,12 +407,14 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 		try {
 			s.shutdownOutput();
 		} catch (IOException e1) {
-			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			throw new KVException(new KVMessage("resp", null, null, null, "Network Error: Could not send data"));
 		}
 
+
 		try {
-			s.setSoTimeout(60000);
+			s.setSoTimeout(TIMEOUT_MILLISECONDS);
 		} catch (SocketException e) {
+			//System.out.println(e);
 			try {
 				s.close();
 				throw new KVException(new KVMessage("resp", null, null, null, "Network Error"));
@@ -352,6 +423,7 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 			}
 		}
 
+
 		KVMessage respMessage = null;
 		try {
 			respMessage = new KVMessage(is);
@@ -365,15 +437,13 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 		}
 
 		try {
+
 			s.close();
 			fos.close();
 		} catch (IOException e) {
 			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
 		}
 
-		if (!respMessage.getMessage().equals("Success")) {
-			throw new KVException(new KVMessage("resp", null, null, null, respMessage.getMessage()));
-		}
-
+		return respMessage;
 	}
 }
@@ -30,20 +30,22 @@
  */
 package edu.berkeley.cs162;
 
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections. 
  * It uses a threadpool to ensure that none of it's methods are blocking.
+ * The request logic is in process(), which SocketServer's event loops call 
+ * directly when the server runs in event loop mode. A client that sends 
+ * frames keeps its connection for as long as it sends requests; while it is 
+ * idle it holds no thread, in either mode (see FramedConnection).
  *
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
  */
-public class KVClientHandler<K extends Serializable, V extends Serializable> implements NetworkHandler {
+public class KVClientHandler<K extends Serializable, V extends Serializable> implements NetworkHandler, MessageHandler {
 	private KeyServer<K, V> keyserver = null;
 	private ThreadPool threadpool = null;
 
@@ -76,197 +78,71 @@ public class KVClientHandler<K extends Serializable, V extends Serializable> imp
 		this.tpcMaster = tpcMaster; 
 	}
 
+	/**
+	 * @param keyserver
+	 * @param threadpool pool to run requests on, for instance one with a 
+	 * bounded queue so that excess requests are answered "Overloaded", or a 
+	 * THREAD_PER_TASK pool that gives every connection its own virtual thread
+	 * @param tpcMaster
+	 */
+	public KVClientHandler(KeyServer<K, V> keyserver, ThreadPool threadpool, TPCMaster<K, V> tpcMaster) {
+		this.keyserver = keyserver;
+		this.threadpool = threadpool;
+		this.tpcMaster = tpcMaster;
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.berkeley.cs162.NetworkHandler#handle(java.net.Socket)
 	 */
 	@Override
 	public void handle(Socket client) throws IOException {
 		//System.out.println("handle called");
-		ConnectionHandler newTask = new ConnectionHandler(client);
+		// The request is read on the pool's thread once it arrives, so a 
+		// slow or idle client holds up neither the acceptor nor a worker
+		FramedConnection newTask = new FramedConnection(client, this, threadpool);
 		//System.out.println("Time to add to ThreadPool");
-		if(newTask.failed == false){
-			try {
-				threadpool.addToQueue(newTask);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}		
-		} else {
-			//System.out.println("xml parsing error");
+		try {
+			newTask.start();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
-	
 	}
 	
-	private class ConnectionHandler implements Runnable{
-		boolean failed = false;
-		Socket s1;
-		KVMessage message;
-		
-		public ConnectionHandler(Socket client) throws SocketTimeoutException, IOException {
-			//System.out.println("ConnectionHandler constructor called");
-			this.s1 = client;
-			KVMessage response = new KVMessage("resp", null, null);
-			String xml = null;
-			
-			try {
-				//System.out.println("Getting inputstream");
-				message = new KVMessage(s1.getInputStream());
-				//System.out.println("Got inputstream and parsed message");
-			} catch (KVException e) {
-				//System.out.println("RAWR, THIS IS NOT GOOD");
-				FilterOutputStream fos = new FilterOutputStream(s1.getOutputStream());
-				fos.flush();
-				//System.out.println("KVException caught line 94");
-				response.setMessage(e.getMsg().getMessage());
-				try {
-					xml = response.toXML();
-				} catch (KVException e1) {
-					//System.out.println(e1.getMsg().getMessage());
-					xml = "xml parsing error line 104";
-				}
-				
-				byte[] xmlBytes = xml.getBytes();
-				try{
-						fos.write(xmlBytes);
-						fos.flush();
-					} catch (IOException e2){
-						//System.out.println("IO Error line 111");
-					}
-				s1.close();
-				failed = true;
-			}
-			//System.out.println("KVMessage from client:");
-			//System.out.println(message);
-		}//End of Constructor
-		
-		public void run() {
-			FilterOutputStream fos = null;
-			try {
-				fos = new FilterOutputStream(s1.getOutputStream());
-				fos.flush();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			
-			
-			KVMessage response = null;
-			String xml = "xml parsing error line 129";
-			if(message.getMsgType().equals("getreq")) {
-				try {
-					V value = (V)tpcMaster.handleGet(message);
-					//System.out.println("Value from GET: " + value);
-					response = new KVMessage("resp" , message.getKey(), value, null, "Success");
-				} catch (KVException e) {
-					response = new KVMessage("resp", null, 
-							null, null, e.getMsg().getMessage());		
-				} finally {
-					try {
-						xml = response.toXML();
-						//System.out.println("XML RESPONSE: " + xml);
-					} catch (KVException e1) {
-						//System.out.println("Fail XML conversion");
-					}
-					byte[] xmlBytes = xml.getBytes();
-					try{
-						fos.write(xmlBytes);
-						fos.flush();
-					} catch (IOException e){
-						//System.out.println("IO Error");
-					}
-					try {
-						s1.shutdownOutput();
-					} catch (IOException e) {
-						
-					}
-				} 
-				//System.out.println("******************************");
-				
+	/**
+	 * Serves one client request through the TPCMaster.
+	 * @param message the decoded request
+	 * @return the response, or null for an unknown request type
+	 */
+	public KVMessage process(KVMessage message) {
+		try {
+			if (message.getMsgType().equals("getreq")) {
+				V value = tpcMaster.handleGet(message);
+				//System.out.println("Value from GET: " + value);
+				return new KVMessage("resp" , message.getKey(), value, null, "Success");
 			} else if (message.getMsgType().equals("putreq")) {
-				 try {
-					boolean result = tpcMaster.performTPCOperation(message, true);
-					String resultString; if (result) resultString = "True"; else resultString = "False";
-					response = new KVMessage("resp" , null, null, resultString, "Success");
-
-				} catch (KVException e) {
-					response = new KVMessage("resp", null, 
-							null, null, e.getMsg().getMessage());
-				} finally {
-					try {
-						xml = response.toXML();
-						//System.out.println("XML RESPONSE: " + xml);
-					} catch (KVException e1) {
-						//System.out.println("Fail XML conversion");
-					}
-					byte[] xmlBytes = xml.getBytes();
-					//System.out.println("Beginning response send");
-					try{
-						fos.write(xmlBytes);
-						fos.flush();
-					} catch (IOException e){
-						//System.out.println("IO Error");
-					}
-					try {
-						s1.shutdownOutput();
-					} catch (IOException e) {
-						
-					}
-				}
-				 //System.out.println("response sent");
-				 //System.out.println("******************************");
-				 
+				boolean result = tpcMaster.performTPCOperation(message, true);
+				String resultString; if (result) resultString = "True"; else resultString = "False";
+				return new KVMessage("resp" , null, null, resultString, "Success");
 			} else if (message.getMsgType().equals("delreq")) {
-				try {
-					tpcMaster.performTPCOperation(message, false);
-					response = new KVMessage("resp" , null, null, null, "Success");
-				} catch (KVException e) {
-					response = new KVMessage("resp", null, 
-							null, null, e.getMsg().getMessage());
-				} finally {
-					try {
-						xml = response.toXML();
-					} catch (KVException e1) {
-						//System.out.println("Fail XML conversion");
-					}
-					byte[] xmlBytes = xml.getBytes();
-					try{
-						fos.write(xmlBytes);
-						fos.flush();
-					} catch (IOException e){
-						//System.out.println("IO Error");
-					}
-					try {
-						s1.shutdownOutput();
-					} catch (IOException e) {
-						
-					}
-				}//End "delreq"
-				
-			} else if(message.getMsgType().equals("getEnKey")) {
-				
-				try {
-					response = new KVMessage("resp", null, null, null, KVMessage.encodeObject(KVCrypt.getKey()));
-					xml = response.toXML();
-				} catch (KVException e1) {
-					//System.out.println("Fail XML conversion");
-				}
-				byte[] xmlBytes = xml.getBytes();
-				try{
-					fos.write(xmlBytes);
-					fos.flush();
-				} catch (IOException e){
-					//System.out.println("IO Error");
-				}
-				try {
-					s1.shutdownOutput();
-				} catch (IOException e) {
-					
-				}
-			}
-			
-			try {
-				s1.close();
-			} catch(IOException e) {
-				e.printStackTrace();
+				tpcMaster.performTPCOperation(message, false);
+				return new KVMessage("resp" , null, null, null, "Success");
+			} else if (message.getMsgType().equals("getEnKey")) {
+				return new KVMessage("resp", null, null, null, KVMessage.encodeObject(KVCrypt.getKey()));
+			} else if (message.getMsgType().equals("pingreq")) {
+				// Lets a client's connection pool check an idle connection
+				return new KVMessage("resp", "Success");
 			}
-		}//End of Run
-	}//End of ConnectionHandler
+		} catch (KVException e) {
+			return new KVMessage("resp", null, 
+					null, null, e.getMsg().getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Client requests all share the normal lane.
+	 */
+	public int getLane(KVMessage message) {
+		return ThreadPool.LANE_NORMAL;
+	}
 }//End of KVClientHandler
\ No newline at end of file
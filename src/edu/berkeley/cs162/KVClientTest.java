@@ -0,0 +1,215 @@
+/**
+ * Test for the handling of failed responses by KVClient
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks that KVClient fails requests whose response has no message,
+ * rather than leaving asynchronous requests pending forever or throwing
+ * NullPointerException from blocking ones. The server here answers every
+ * request with an empty "resp". Also checks that a blocking handler on a
+ * PRIORITY_LANES pool still serves a request while another connection sits
+ * idle in a connection pool, which pings it.
+ *
+ * USAGE: KVClientTest [port]; the lanes case uses port + 1
+ */
+public class KVClientTest {
+	// Far below the client's own timeout, so only a hung request misses it
+	static final long ANSWER_WITHIN_MILLIS = 5000;
+
+	/**
+	 * Answers every request with a response that carries no message.
+	 */
+	static class EmptyResponseHandler implements NetworkHandler, MessageHandler {
+		public void handle(Socket client) throws IOException {
+			// Only used with event loops
+			client.close();
+		}
+
+		public KVMessage process(KVMessage request) {
+			return new KVMessage("resp");
+		}
+
+		public int getLane(KVMessage request) {
+			return ThreadPool.LANE_NORMAL;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 8090;
+		if (args.length > 0) {
+			port = Integer.parseInt(args[0]);
+		}
+
+		final SocketServer server = new SocketServer("localhost", port);
+		server.addHandler(new EmptyResponseHandler());
+		server.useEventLoops(1, new ThreadPool(1));
+		server.connect();
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.run();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		final KVClient<String, String> client = new KVClient<String, String>("localhost", port, true);
+		int failures = 0;
+		failures += checkFails("getAsync", client.getAsync("key"));
+		failures += checkFails("putAsync", client.putAsync("key", "value"));
+		failures += checkFails("delAsync", client.delAsync("key"));
+		failures += checkThrows("get", new Request() {
+			public void send() throws KVException {
+				client.get("key");
+			}
+		});
+		failures += checkThrows("put", new Request() {
+			public void send() throws KVException {
+				client.put("key", "value");
+			}
+		});
+		failures += checkThrows("del", new Request() {
+			public void send() throws KVException {
+				client.del("key");
+			}
+		});
+
+		server.close();
+		failures += checkLanes(port + 1);
+		System.out.println("failures=" + failures);
+		System.exit(failures > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return 0 if the request failed with a KVException in time, 1 otherwise
+	 */
+	static int checkFails(String name, CompletableFuture<?> result) throws InterruptedException {
+		try {
+			result.get(ANSWER_WITHIN_MILLIS, TimeUnit.MILLISECONDS);
+			System.out.println(name + ": completed normally");
+		} catch (TimeoutException e) {
+			System.out.println(name + ": still pending after " + ANSWER_WITHIN_MILLIS + " ms");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof KVException) {
+				System.out.println(name + ": failed with " + ((KVException) e.getCause()).getMsg().getMessage());
+				return 0;
+			}
+			System.out.println(name + ": failed with " + e.getCause());
+		}
+		return 1;
+	}
+
+	/**
+	 * Serves a TPCMasterHandler on a one-thread PRIORITY_LANES pool and
+	 * reads a key while an idle pooled connection is kept alive, so that
+	 * the waiting connection must not take the thread from the request.
+	 * @param port port to serve on
+	 * @return 0 if the read was answered in time, 1 otherwise
+	 */
+	static int checkLanes(int port) throws Exception {
+		KeyServer<String, String> keyserver = new KeyServer<String, String>(
+				new KVCache<String, String>(100), new KVStore<String, String>(LatencyModel.none()));
+		keyserver.put(KVMessage.marshal("key"), KVMessage.marshal("value"));
+		ThreadPool pool = new ThreadPool(1, Integer.MAX_VALUE, ThreadPool.RejectionPolicy.BLOCK, ThreadPool.Mode.PRIORITY_LANES);
+		final SocketServer server = new SocketServer("localhost", port);
+		server.addHandler(new TPCMasterHandler<String, String>(keyserver, pool));
+		server.connect();
+		Thread serverThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.run();
+				} catch (IOException e) {
+					// How close() ends a blocking server
+				}
+			}
+		});
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Pinged every 100 ms while idle
+		ConnectionPool idle = new ConnectionPool(1, 1, 200);
+		idle.warm("localhost", port);
+		KVConnection connection = new KVConnection("localhost", port);
+		int failures = 0;
+		try {
+			KVMessage request = new KVMessage("getreq", KVMessage.marshal("key"), null);
+			for (int i = 0; i < 3 && failures == 0; i++) {
+				Thread.sleep(300);
+				try {
+					KVMessage response = connection.send(request, (int) ANSWER_WITHIN_MILLIS);
+					System.out.println("lanes get " + i + ": " + response.getMessage());
+				} catch (IOException e) {
+					System.out.println("lanes get " + i + ": " + e);
+					failures++;
+				} catch (KVException e) {
+					System.out.println("lanes get " + i + ": " + e.getMsg().getMessage());
+					failures++;
+				}
+			}
+		} finally {
+			connection.close();
+			idle.close();
+			server.close();
+			pool.shutdown();
+		}
+		return failures;
+	}
+
+	/**
+	 * A blocking request of the client.
+	 */
+	interface Request {
+		public void send() throws KVException;
+	}
+
+	/**
+	 * @return 0 if the request threw a KVException, 1 otherwise
+	 */
+	static int checkThrows(String name, Request request) {
+		try {
+			request.send();
+			System.out.println(name + ": returned normally");
+		} catch (KVException e) {
+			System.out.println(name + ": threw " + e.getMsg().getMessage());
+			return 0;
+		} catch (RuntimeException e) {
+			System.out.println(name + ": threw " + e);
+		}
+		return 1;
+	}
+}
@@ -0,0 +1,387 @@
+/**
+ * Keep-alive connection to a key-value server
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A long-lived connection to a SocketServer that carries many requests as
+ * frames (see MessageFramer) instead of opening a connection per request.
+ * The socket is opened on first use and opened again after a failure, so
+ * one KVConnection can be kept for the lifetime of a client.
+ *
+ * Requests are pipelined: any number of threads can send at once without
+ * waiting for earlier responses. Each request gets a request id, and a
+ * reader thread hands each response to the request with the same id, so
+ * the server may answer in any order. A request that times out or is
+ * cancelled stops waiting at once, and its late response is dropped.
+ *
+ * Servers leave the id out only when they could not read the request. Such
+ * a response, like one that cannot be decoded, goes to the request waiting
+ * if there is just one; with several waiting its owner is unknown, so the
+ * connection fails rather than guess. An "Overloaded" response without an
+ * id is different: servers send it when they turn the whole connection
+ * away, so it answers every waiting request and the connection is closed.
+ *
+ * Requests are sent in XML unless the connection is created to use the
+ * binary codec; responses are read in whichever codec the server uses.
+ */
+public class KVConnection {
+	private final String host;
+	private final int port;
+	private final boolean binary;
+	private final AtomicLong nextRequestId = new AtomicLong();
+
+	private Link link = null;
+
+	/**
+	 * @param host server to connect to
+	 * @param port port the server listens on
+	 */
+	public KVConnection(String host, int port) {
+		this(host, port, false);
+	}
+
+	/**
+	 * @param host server to connect to
+	 * @param port port the server listens on
+	 * @param binary send requests in the binary codec rather than XML
+	 */
+	public KVConnection(String host, int port, boolean binary) {
+		this.host = host;
+		this.port = port;
+		this.binary = binary;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Opens the socket if it is not open already.
+	 * @throws IOException if the server cannot be reached
+	 */
+	public synchronized void connect() throws IOException {
+		if (link == null) {
+			link = new Link(new Socket(host, port));
+		}
+	}
+
+	/**
+	 * @return true if the socket is open
+	 */
+	public synchronized boolean isConnected() {
+		return link != null;
+	}
+
+	/**
+	 * @return number of requests sent and not yet answered
+	 */
+	public synchronized int getPendingRequests() {
+		return link == null ? 0 : link.pending.size();
+	}
+
+	/**
+	 * Sends a request without waiting for its response. The request is not
+	 * modified; a copy carrying the request id is sent.
+	 * @param request the request
+	 * @return the response, once it arrives; completes with an IOException
+	 * if the connection fails first
+	 * @throws IOException if the server cannot be reached or the request
+	 * could not be sent
+	 * @throws KVException if the request cannot be encoded
+	 */
+	public CompletableFuture<KVMessage> sendAsync(KVMessage request) throws IOException, KVException {
+		String id = Long.toString(nextRequestId.incrementAndGet());
+		KVMessage tagged = new KVMessage(request);
+		tagged.setRequestId(id);
+		ByteBuffer frame = MessageFramer.frame(tagged, binary);
+
+		Link current;
+		synchronized (this) {
+			connect();
+			current = link;
+		}
+		CompletableFuture<KVMessage> response = new CompletableFuture<KVMessage>();
+		current.send(id, frame, response);
+		final Link sentOn = current;
+		final String sentId = id;
+		response.whenComplete(new BiConsumer<KVMessage, Throwable>() {
+			public void accept(KVMessage message, Throwable failure) {
+				// Answered already, or cancelled and no longer waiting
+				sentOn.pending.remove(sentId);
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Sends a request and waits for its response. If writing to a connection
+	 * that was already open fails, the server may have closed it while it
+	 * sat idle, so the request is sent once more on a new connection. Once
+	 * the request has been written it is never sent again, since the server
+	 * may have applied it.
+	 * @param request the request
+	 * @param timeoutMillis how long to wait for the response
+	 * @return the response
+	 * @throws SocketTimeoutException if no response arrived in time; a late
+	 * response is dropped when it arrives
+	 * @throws IOException if the request could not be sent or the response
+	 * not received
+	 * @throws KVException if the request cannot be encoded or the response
+	 * cannot be decoded
+	 */
+	public KVMessage send(KVMessage request, int timeoutMillis) throws IOException, KVException {
+		boolean reused = isConnected();
+		CompletableFuture<KVMessage> response;
+		try {
+			response = sendAsync(request);
+		} catch (IOException e) {
+			if (!reused) {
+				throw e;
+			}
+			response = sendAsync(request);
+		}
+		return await(response, timeoutMillis);
+	}
+
+	/**
+	 * Waits for a response from sendAsync().
+	 * @param response the pending response
+	 * @param timeoutMillis how long to wait
+	 * @return the response
+	 * @throws SocketTimeoutException if no response arrived in time
+	 * @throws IOException if the connection failed
+	 * @throws KVException if the response cannot be decoded
+	 */
+	public static KVMessage await(CompletableFuture<KVMessage> response, int timeoutMillis) throws IOException, KVException {
+		try {
+			return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			response.cancel(false);
+			throw new SocketTimeoutException("No response within " + timeoutMillis + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			response.cancel(false);
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof KVException) {
+				throw (KVException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Closes the socket; requests still waiting for a response fail. The
+	 * next send opens a new socket.
+	 */
+	public void close() {
+		Link closing;
+		synchronized (this) {
+			closing = link;
+			link = null;
+		}
+		if (closing != null) {
+			closing.fail(new EOFException("Connection closed"));
+		}
+	}
+
+	private synchronized void unlink(Link failed) {
+		if (link == failed) {
+			link = null;
+		}
+	}
+
+	/**
+	 * One socket and the requests waiting on it. Its reader thread owns the
+	 * input; writers take turns on the output.
+	 */
+	private class Link implements Runnable {
+		final Socket socket;
+		final DataInputStream in;
+		final OutputStream out;
+		final Map<String, CompletableFuture<KVMessage>> pending = new ConcurrentHashMap<String, CompletableFuture<KVMessage>>();
+		volatile boolean failed = false;
+
+		Link(Socket socket) throws IOException {
+			this.socket = socket;
+			try {
+				socket.setTcpNoDelay(true);
+				// Lets the reader notice a server that vanished without closing
+				socket.setKeepAlive(true);
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				out = socket.getOutputStream();
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			Thread reader = new Thread(this, "KVConnection-" + host + ":" + port);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		void send(String id, ByteBuffer frame, CompletableFuture<KVMessage> response) throws IOException {
+			pending.put(id, response);
+			if (failed) {
+				// The reader may have failed everything before this was added
+				pending.remove(id);
+				throw new EOFException("Connection closed");
+			}
+			try {
+				synchronized (out) {
+					out.write(frame.array(), 0, frame.limit());
+					out.flush();
+				}
+			} catch (IOException e) {
+				pending.remove(id);
+				fail(e);
+				throw e;
+			}
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					KVMessage response;
+					try {
+						response = MessageFramer.read(in);
+					} catch (KVException e) {
+						// The frame was read but not understood; its id is lost
+						CompletableFuture<KVMessage> owner = onlyPending();
+						if (owner != null) {
+							owner.completeExceptionally(e);
+						}
+						continue;
+					}
+					if (response == null) {
+						throw new EOFException("Connection closed by server");
+					}
+					if (response.getRequestId() == null && "Overloaded".equals(response.getMessage())) {
+						turnedAway(response);
+						return;
+					}
+					CompletableFuture<KVMessage> waiting;
+					if (response.getRequestId() != null) {
+						waiting = pending.remove(response.getRequestId());
+					} else {
+						waiting = onlyPending();
+					}
+					if (waiting != null) {
+						waiting.complete(response);
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * @return the one request waiting, which must own a response that
+		 * carries no usable id, or null if none is waiting
+		 * @throws IOException if several requests are waiting, so the owner
+		 * is unknown and the connection must fail
+		 */
+		private CompletableFuture<KVMessage> onlyPending() throws IOException {
+			Iterator<String> ids = pending.keySet().iterator();
+			if (!ids.hasNext()) {
+				return null;
+			}
+			String id = ids.next();
+			if (ids.hasNext()) {
+				throw new IOException("Response without a request id while " + pending.size() + " requests wait");
+			}
+			return pending.remove(id);
+		}
+
+		/**
+		 * The server refused the connection without reading any of its
+		 * requests; gives each of them the refusal rather than leave them
+		 * waiting for the server to close.
+		 * @param refusal the untagged "Overloaded" response
+		 */
+		private void turnedAway(KVMessage refusal) {
+			failed = true;
+			unlink(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			for (String id : pending.keySet()) {
+				CompletableFuture<KVMessage> waiting = pending.remove(id);
+				if (waiting != null) {
+					KVMessage response = new KVMessage(refusal);
+					response.setRequestId(id);
+					waiting.complete(response);
+				}
+			}
+		}
+
+		/**
+		 * Closes the socket and fails every request still waiting on it.
+		 */
+		void fail(IOException cause) {
+			failed = true;
+			unlink(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			for (String id : pending.keySet()) {
+				CompletableFuture<KVMessage> waiting = pending.remove(id);
+				if (waiting != null) {
+					waiting.completeExceptionally(cause);
+				}
+			}
+		}
+	}
+}
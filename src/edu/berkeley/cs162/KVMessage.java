@@ -40,6 +40,9 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import javax.crypto.SecretKey;
 
 import javax.xml.bind.DatatypeConverter;
@@ -76,6 +79,14 @@ public class KVMessage implements Serializable {
 	private String status = null;
 	private String message = null;
 	private String tpcOpId = null;
+	// Matches a response to its request when several share a connection
+	private String requestId = null;
+
+	// First byte of the binary form; XML always starts with '<'
+	public static final byte BINARY_MAGIC = (byte) 0xB1;
+	// Fields in the binary form, in order: type, key, value, status,
+	// message, TPC op id and request id
+	private static final int BINARY_FIELDS = 7;
 
 	public KVMessage(String msgType) {
 		this.msgType = msgType;
@@ -93,6 +104,7 @@ public class KVMessage implements Serializable {
 		this.status = kvm.status;
 		this.message = kvm.message;
 		this.tpcOpId = kvm.tpcOpId;
+		this.requestId = kvm.requestId;
 	}
 
 	public KVMessage(String msgType, String key, String value) {
@@ -165,8 +177,11 @@ public class KVMessage implements Serializable {
 		Node messageElem = root.getElementsByTagName("Message").item(0);
 		if (messageElem != null) message = ((Text)messageElem.getFirstChild()).getWholeText();
 		
-		Node tpcOpIdElem = root.getElementsByTagName("TPCOpId").item(0);
+		Node tpcOpIdElem = root.getElementsByTagName("TpcOpId").item(0);
 		if (tpcOpIdElem != null) tpcOpId = ((Text)tpcOpIdElem.getFirstChild()).getWholeText();
+		
+		Node requestIdElem = root.getElementsByTagName("RequestId").item(0);
+		if (requestIdElem != null) requestId = ((Text)requestIdElem.getFirstChild()).getWholeText();
 	}
 
 
@@ -212,6 +227,11 @@ public class KVMessage implements Serializable {
 			tpcOpIdNode.appendChild(d.createCDATASection(tpcOpId));
 			root.appendChild(tpcOpIdNode);
 		}
+		if (requestId != null) {
+			Element requestIdNode = d.createElement("RequestId");
+			requestIdNode.appendChild(d.createTextNode(requestId));
+			root.appendChild(requestIdNode);
+		}
 		TransformerFactory tf = TransformerFactory.newInstance();
 		Transformer t;
 		
@@ -237,6 +257,93 @@ public class KVMessage implements Serializable {
 
 	}
 
+	/**
+	 * Generate the compact binary representation for this message, which 
+	 * avoids building a DOM: BINARY_MAGIC, the number of fields, then each 
+	 * field as a 4 byte length (-1 if the field is unset) and its UTF-8 
+	 * bytes.
+	 * @return the encoded message
+	 */
+	public byte[] toBinary() {
+		String[] fields = { msgType, key, value, status, message, tpcOpId, requestId };
+		byte[][] encoded = new byte[fields.length][];
+		int size = 2;
+		for (int i = 0; i < fields.length; i++) {
+			size += 4;
+			if (fields[i] != null) {
+				encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+				size += encoded[i].length;
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put(BINARY_MAGIC);
+		buffer.put((byte) fields.length);
+		for (byte[] field : encoded) {
+			if (field == null) {
+				buffer.putInt(-1);
+			} else {
+				buffer.putInt(field.length);
+				buffer.put(field);
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Parse a message generated by toBinary(). Fields added after the ones 
+	 * known here are skipped.
+	 * @param bytes buffer holding the message
+	 * @param offset start of the message
+	 * @param length length of the message
+	 * @return the message
+	 * @throws KVException if the bytes are not a valid message
+	 */
+	public static KVMessage fromBinary(byte[] bytes, int offset, int length) throws KVException {
+		if (length < 2 || bytes[offset] != BINARY_MAGIC || bytes[offset + 1] == 0) {
+			throw unparseableBinary();
+		}
+		int fieldCount = bytes[offset + 1] & 0xFF;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, offset + 2, length - 2);
+		try {
+			String[] fields = new String[Math.max(fieldCount, BINARY_FIELDS)];
+			for (int i = 0; i < fieldCount; i++) {
+				fields[i] = readBinaryField(buffer);
+			}
+			if (buffer.hasRemaining() || fields[0] == null) {
+				throw unparseableBinary();
+			}
+
+			KVMessage message = new KVMessage(fields[0]);
+			message.key = fields[1];
+			message.value = fields[2];
+			message.status = fields[3];
+			message.message = fields[4];
+			message.tpcOpId = fields[5];
+			message.requestId = fields[6];
+			return message;
+		} catch (BufferUnderflowException e) {
+			throw unparseableBinary();
+		}
+	}
+
+	private static String readBinaryField(ByteBuffer buffer) throws KVException {
+		int length = buffer.getInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > buffer.remaining()) {
+			throw unparseableBinary();
+		}
+		String field = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return field;
+	}
+
+	private static KVException unparseableBinary() {
+		return new KVException(new KVMessage("resp", null, null, false, "Unknown Error: Received unparseable binary message"));
+	}
+
 	/**
 	 * Encode Object to base64 String 
 	 * @param obj
@@ -279,6 +386,52 @@ public class KVMessage implements Serializable {
 		return obj;
 	}
 
+	/**
+	 * Serialize Object to raw bytes
+	 * @param obj
+	 * @return
+	 */
+	public static byte[] encodeBytes(Object obj) throws KVException {
+		try {
+			ByteArrayOutputStream bs = new ByteArrayOutputStream();
+			ObjectOutputStream os = new ObjectOutputStream(bs);
+			os.writeObject(obj);
+			os.close();
+			return bs.toByteArray();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Error serializing object"));
+		}
+	}
+
+	/**
+	 * Deserialize Object from raw bytes
+	 * @param bytes
+	 * @return
+	 */
+	public static Object decodeBytes(byte[] bytes) throws KVException {
+		return decodeBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Deserialize Object from a slice of a byte array
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static Object decodeBytes(byte[] bytes, int offset, int length) throws KVException {
+		try {
+			ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length));
+			Object obj = is.readObject();
+			is.close();
+			return obj;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
+		} catch (ClassNotFoundException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Decoding object class not found"));
+		}
+	}
+
 	//crap from proj3
 
 	/** Read the object from Base64 string. */
@@ -376,4 +529,17 @@ public class KVMessage implements Serializable {
 	public String getTpcOpId() {
 		return this.tpcOpId;
 	}
+	
+	/**
+	 * @param requestId id the response to this request must carry, so that 
+	 * a client can send many requests on one connection and match the 
+	 * responses, which may come back in any order
+	 */
+	public void setRequestId(String requestId) {
+		this.requestId = requestId;
+	}
+	
+	public String getRequestId() {
+		return this.requestId;
+	}
 }
@@ -38,6 +38,12 @@ import java.util.Hashtable;
  * This is a dummy KeyValue Store. Ideally this would go to disk, 
  * or some other backing store. For this project, we simulate the disk like 
  * system using a manual delay.
+ * 
+ * The delay comes from a LatencyModel, with separate models for reads and 
+ * for writes (put and del). The no-argument constructor keeps the original 
+ * one second per operation unless the kvstore.read.latency or 
+ * kvstore.write.latency system properties override it, for instance 
+ * -Dkvstore.read.latency=none to run benchmarks without delays.
  *
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
@@ -46,15 +52,36 @@ public class KVStore<K extends Serializable, V extends Serializable> implements
 	Dictionary<K, V> store = null;
 	private static long SLEEP_TIME = 1000;
 	
+	private final LatencyModel readLatency;
+	private final LatencyModel writeLatency;
+	
 	public KVStore() {
+		this(LatencyModel.fromProperty("kvstore.read.latency", LatencyModel.constant(SLEEP_TIME)),
+				LatencyModel.fromProperty("kvstore.write.latency", LatencyModel.constant(SLEEP_TIME)));
+	}
+	
+	/**
+	 * @param latency delay model for every operation
+	 */
+	public KVStore(LatencyModel latency) {
+		this(latency, latency);
+	}
+	
+	/**
+	 * @param readLatency delay model for get
+	 * @param writeLatency delay model for put and del
+	 */
+	public KVStore(LatencyModel readLatency, LatencyModel writeLatency) {
 		store = new Hashtable<K, V>();
+		this.readLatency = readLatency;
+		this.writeLatency = writeLatency;
 	}
 	
 	@Override
 	public boolean put(K key, V value) throws KVException {
 		putDelay();
-		V existingValue = get(key);
-		store.put(key, value);
+		// A put is one simulated access, so it must not go through get() and pay a read delay too
+		V existingValue = store.put(key, value);
 		if (existingValue == null) {
 			return false;
 		}
@@ -67,24 +94,16 @@ public class KVStore<K extends Serializable, V extends Serializable> implements
 		return this.store.get(key);
 	}
 	
-	private void delay() {
-		try {
-			Thread.sleep(SLEEP_TIME);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-	}
-	
 	private void getDelay() {
-		delay();
+		readLatency.delay();
 	}
 	
 	private void putDelay() {
-		delay();
+		writeLatency.delay();
 	}
 
 	private void delDelay() {
-		delay();
+		writeLatency.delay();
 	}
 	
 	@Override
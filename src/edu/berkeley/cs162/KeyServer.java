@@ -31,6 +31,10 @@ package edu.berkeley.cs162;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class defines the slave key value servers. Each individual KeyServer 
@@ -38,20 +42,109 @@ import java.util.*;
  * implement this class. For Project 4, you will have a Master Key-Value server 
  * and multiple of these slave Key-Value servers, each of them catering to a 
  * different part of the key namespace.
+ * 
+ * Operations on the same key are serialized by a striped read/write lock 
+ * so the cache and the store never disagree about it, while operations on 
+ * keys in different stripes proceed in parallel. Concurrent cache misses on 
+ * the same key share a single store read, whose result is then cached. Keys 
+ * the store does not have are remembered in a bounded negative cache, so 
+ * repeated lookups of absent keys never reach the store.
  *
  * @param <K> Java Generic Type for the Key
  * @param <V> Java Generic Type for the Value
  */
 public class KeyServer<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
-	private KVStore<K, V> dataStore = null;
-	private KVCache<K, V> dataCache = null;
+	private KeyValueInterface<K, V> dataStore = null;
+	private KeyValueInterface<K, V> dataCache = null;
+	
+	private static final int DEFAULT_LOCK_STRIPES = 64;
+	private static final int DEFAULT_ABSENT_KEYS = 10000;
+	private final ReentrantReadWriteLock[] keyLocks;
+	// Store reads in progress, so concurrent misses on a key wait for one read
+	private final ConcurrentHashMap<K, Load<V>> loads = new ConcurrentHashMap<K, Load<V>>();
+	// Keys known not to be in the store; set by misses and del, cleared by put
+	private final KVCache<K, Boolean> absentKeys;
+	private final AtomicLong absentHits = new AtomicLong();
+	private final AtomicLong absentMisses = new AtomicLong();
+	
+	/**
+	 * A store read that other gets of the same key can wait on.
+	 */
+	private static class Load<V> {
+		final CountDownLatch done = new CountDownLatch(1);
+		V value = null;
+		boolean failed = false;
+	}
 	
 	/**
 	 * @param cacheSize number of entries in the data Cache.
 	 */
 	public KeyServer(int cacheSize) {
-	    dataCache = new KVCache(cacheSize);
-	    dataStore = new KVStore();
+	    this(new KVCache<K, V>(cacheSize));
+	}
+	
+	/**
+	 * @param dataCache the write-through cache in front of the store, 
+	 * for instance a byte-budgeted KVCache or an OffHeapKVCache.
+	 */
+	public KeyServer(KeyValueInterface<K, V> dataCache) {
+	    this(dataCache, new KVStore<K, V>());
+	}
+	
+	/**
+	 * @param cacheSize number of entries in the data Cache.
+	 * @param dataStore the backing store, for instance a LogStructuredStore.
+	 */
+	public KeyServer(int cacheSize, KeyValueInterface<K, V> dataStore) {
+	    this(new KVCache<K, V>(cacheSize), dataStore);
+	}
+	
+	/**
+	 * @param dataCache the write-through cache in front of the store.
+	 * @param dataStore the backing store.
+	 */
+	public KeyServer(KeyValueInterface<K, V> dataCache, KeyValueInterface<K, V> dataStore) {
+	    this(dataCache, dataStore, DEFAULT_LOCK_STRIPES, DEFAULT_ABSENT_KEYS);
+	}
+	
+	/**
+	 * @param dataCache the write-through cache in front of the store.
+	 * @param dataStore the backing store.
+	 * @param lockStripes number of per-key locks; more stripes let more 
+	 * writes to different keys run at once.
+	 * @param absentKeys number of keys the negative cache remembers as 
+	 * missing from the store.
+	 */
+	public KeyServer(KeyValueInterface<K, V> dataCache, KeyValueInterface<K, V> dataStore, int lockStripes, int absentKeys) {
+	    this.dataCache = dataCache;
+	    this.dataStore = dataStore;
+	    this.absentKeys = new KVCache<K, Boolean>(absentKeys);
+	    keyLocks = new ReentrantReadWriteLock[lockStripes];
+	    for (int i = 0; i < lockStripes; i++) {
+	    	keyLocks[i] = new ReentrantReadWriteLock();
+	    }
+	}
+	
+	private ReentrantReadWriteLock lockFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return keyLocks[(h & 0x7fffffff) % keyLocks.length];
+	}
+	
+	/**
+	 * @return number of lookups answered "Does Not Exist" by the negative 
+	 * cache without reading the store.
+	 */
+	public long getAbsentKeyHits() {
+		return absentHits.get();
+	}
+	
+	/**
+	 * @return number of lookups that missed both the data cache and the 
+	 * negative cache and had to read the store.
+	 */
+	public long getAbsentKeyMisses() {
+		return absentMisses.get();
 	}
 	
 	public boolean put(K key, V value) throws KVException {
@@ -75,14 +168,19 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 		boolean store = false;
 		boolean cache = false;
 		
+		ReentrantReadWriteLock lock = lockFor(key);
+		lock.writeLock().lock();
 		try{
-		    synchronized (dataStore) {
-			store = dataStore.put(key,value);
-		    }
-		}catch (KVException e) {
-			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			try{
+				store = dataStore.put(key,value);
+			}catch (KVException e) {
+				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			}
+			cache = dataCache.put(key,value);
+			absentKeys.del(key);
+		} finally {
+			lock.writeLock().unlock();
 		}
-		cache = dataCache.put(key,value);
 		
 	    if (store == true)
 		return true;
@@ -100,17 +198,65 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 	    if (size.length == 0)
 		throw new KVException(new KVMessage("resp", keyString, null, false, "Empty key"));
 		
-		if(dataCache.get(key) != null){
-			return dataCache.get(key);
-		}
+		ReentrantReadWriteLock lock = lockFor(key);
+		lock.readLock().lock();
 		try{
-		    if (dataStore.get(key) != null) {
-			return dataStore.get(key);
-		    }
+			V cached = dataCache.get(key);
+			if(cached != null){
+				return cached;
+			}
+			if (absentKeys.get(key) != null) {
+				absentHits.incrementAndGet();
+				throw new KVException(new KVMessage("resp", null, null, null, "Does Not Exist"));
+			}
+			absentMisses.incrementAndGet();
+			V stored = load(key);
+			if (stored != null) {
+				return stored;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		throw new KVException(new KVMessage("resp", null, null, null, "Does Not Exist"));
+	}
+
+	/**
+	 * Reads a key from the store after a cache miss, or waits for a read of 
+	 * the same key that is already in progress. The caller holds the key's 
+	 * read lock, so no write can change the key while the read is shared.
+	 * @return the stored value, or null if the key does not exist
+	 */
+	private V load(K key) throws KVException {
+		Load<V> load = new Load<V>();
+		Load<V> running = loads.putIfAbsent(key, load);
+		if (running != null) {
+			try {
+				running.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			}
+			if (running.failed) {
+				throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+			}
+			return running.value;
+		}
+		
+		try {
+			load.value = dataStore.get(key);
+			if (load.value != null) {
+				dataCache.put(key, load.value);
+			} else {
+				absentKeys.put(key, Boolean.TRUE);
+			}
+			return load.value;
 		} catch (KVException e) {
+			load.failed = true;
 			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		} finally {
+			loads.remove(key, load);
+			load.done.countDown();
 		}
-		throw new KVException(new KVMessage("resp", null, null, null, "Does Not Exist"));
 	}
 
 	@Override
@@ -123,22 +269,27 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 	    if (size.length == 0)
 		throw new KVException(new KVMessage("resp", keyString, null, false, "Empty key"));
 
+	    ReentrantReadWriteLock lock = lockFor(key);
+	    lock.writeLock().lock();
 	    try{
-		if(dataCache.get(key) == null && dataStore.get(key) == null) {
-		    throw new KVException(new KVMessage("resp", keyString, null, false, "Does not exist"));			
-		}
-	    }
-	    catch (KVException e) {
-		throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
-	    }	
-
-	    dataCache.del(key);
-	    try{
-		synchronized (dataStore) {
-		    dataStore.del(key);
-		}
-	    } catch (KVException e) {
-		throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		    try{
+			if(absentKeys.get(key) != null || (dataCache.get(key) == null && dataStore.get(key) == null)) {
+			    throw new KVException(new KVMessage("resp", keyString, null, false, "Does not exist"));			
+			}
+		    }
+		    catch (KVException e) {
+			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		    }	
+	
+		    dataCache.del(key);
+		    try{
+			dataStore.del(key);
+			absentKeys.put(key, Boolean.TRUE);
+		    } catch (KVException e) {
+			throw new KVException(new KVMessage("resp", null, null, null, "IO Error"));
+		    }
+	    } finally {
+	    	lock.writeLock().unlock();
 	    }
 	}
 }
@@ -0,0 +1,622 @@
+/**
+ * LSM-tree persistent store
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured merge tree store for write-heavy shards. A put or del is 
+ * appended to a write-ahead log and applied to a sorted in-memory memtable, 
+ * so writes are sequential appends. When the memtable reaches its size limit 
+ * it is frozen and a background thread writes it out as an immutable 
+ * SSTable, after which its log is deleted.
+ * 
+ * Tables are compacted size-tiered: whenever the newest COMPACTION_TRIGGER 
+ * tables are of a similar size they are merged into one, and if the table 
+ * count still reaches MAX_TABLES every table is merged. Lookups check the 
+ * memtables and then the tables from newest to oldest; each table answers 
+ * from its Bloom filter and sparse index.
+ * 
+ * Keys are ordered by their serialized bytes, so any Serializable key works.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class LSMStore<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	private static final String WAL_SUFFIX = ".wal";
+	// Log record layout: CRC32 of the rest, key length, value length (-1 for a delete), key, value
+	private static final int WAL_HEADER = 12;
+	
+	private static final long DEFAULT_MEMTABLE_BYTES = 4L << 20;
+	private static final int COMPACTION_TRIGGER = 4;
+	private static final int MAX_TABLES = 12;
+	// Tables whose sizes are within this factor of each other are in the same tier
+	private static final int TIER_FACTOR = 4;
+	// Per-entry memory overhead of the memtable, used for its size estimate
+	private static final int MEMTABLE_ENTRY_OVERHEAD = 64;
+	
+	private final File directory;
+	private final long memtableLimit;
+	private final boolean syncWrites;
+	
+	// Readers and writers share the read lock; swapping memtables and installing tables take the write lock
+	private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+	private final Condition flushNeeded = stateLock.writeLock().newCondition();
+	private final Condition flushDone = stateLock.writeLock().newCondition();
+	// Serializes log appends and memtable updates
+	private final Object writeMutex = new Object();
+	
+	private ConcurrentSkipListMap<byte[], byte[]> memtable = newMemtable();
+	private final AtomicLong memtableBytes = new AtomicLong();
+	private List<Long> memtableLogs = new ArrayList<Long>();
+	// Frozen memtable being written to a table, and the logs it came from
+	private ConcurrentSkipListMap<byte[], byte[]> flushing = null;
+	private List<Long> flushingLogs = null;
+	// Newest first
+	private List<SSTable> tables = new ArrayList<SSTable>();
+	
+	private final AtomicLong nextId = new AtomicLong();
+	private FileChannel log;
+	private long logSize;
+	
+	private final Thread maintenance;
+	private volatile boolean closed = false;
+	
+	/**
+	 * Opens the store with a 4 MB memtable, recovering any data already in 
+	 * the directory.
+	 * @param directory where tables and logs live; created if missing
+	 * @param syncWrites whether every put and del is forced to disk before returning
+	 * @throws KVException if the existing files cannot be read
+	 */
+	public LSMStore(String directory, boolean syncWrites) throws KVException {
+		this(new File(directory), DEFAULT_MEMTABLE_BYTES, syncWrites);
+	}
+	
+	/**
+	 * @param directory where tables and logs live; created if missing
+	 * @param memtableLimit estimated memtable size at which it is flushed to a table
+	 * @param syncWrites whether every put and del is forced to disk before returning
+	 * @throws KVException if the existing files cannot be read
+	 */
+	public LSMStore(File directory, long memtableLimit, boolean syncWrites) throws KVException {
+		this.directory = directory;
+		this.memtableLimit = memtableLimit;
+		this.syncWrites = syncWrites;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create " + directory);
+			}
+			recover();
+			openLog(nextId.getAndIncrement());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		}
+		
+		maintenance = new Thread() {
+			public void run() {
+				maintenanceLoop();
+			}
+		};
+		maintenance.setDaemon(true);
+		maintenance.start();
+	}
+
+	/**
+	 * Appends the put first, and only then looks for the value it replaced: 
+	 * in the memtable, which the append itself reports, and otherwise in the 
+	 * frozen memtable and the tables, whose Bloom filters rule out most keys 
+	 * that were never written without touching the disk.
+	 * @return whether the put replaced a value
+	 */
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		byte[] valueBytes = KVMessage.encodeBytes(value);
+		return exists(write(keyBytes, valueBytes, true));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(K key) throws KVException {
+		byte[] value = lookup(KVMessage.encodeBytes(key));
+		if (!exists(value)) {
+			return null;
+		}
+		return (V) KVMessage.decodeBytes(value);
+	}
+
+	/**
+	 * Writes a tombstone without checking that the key exists, so a del 
+	 * stays a sequential append; deleting a missing key is harmless.
+	 */
+	@Override
+	public void del(K key) throws KVException {
+		write(KVMessage.encodeBytes(key), SSTable.TOMBSTONE, false);
+	}
+	
+	/**
+	 * Stops background work and closes all files. Data still in the memtable 
+	 * is recovered from its log on the next open.
+	 */
+	public void close() {
+		closed = true;
+		stateLock.writeLock().lock();
+		try {
+			flushNeeded.signalAll();
+			flushDone.signalAll();
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+		try {
+			maintenance.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		stateLock.writeLock().lock();
+		try {
+			log.close();
+			for (SSTable table : tables) {
+				table.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+	
+	private static boolean exists(byte[] value) {
+		return value != null && value.length > 0;
+	}
+	
+	private static ConcurrentSkipListMap<byte[], byte[]> newMemtable() {
+		return new ConcurrentSkipListMap<byte[], byte[]>(SSTable.KEY_ORDER);
+	}
+	
+	/**
+	 * @return the newest value bytes for the key, TOMBSTONE if it was deleted, or null
+	 */
+	private byte[] lookup(byte[] key) throws KVException {
+		stateLock.readLock().lock();
+		try {
+			byte[] value = memtable.get(key);
+			if (value == null && flushing != null) {
+				value = flushing.get(key);
+			}
+			for (int i = 0; value == null && i < tables.size(); i++) {
+				value = tables.get(i).get(key);
+			}
+			return value;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			stateLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @param findPrevious whether to look for the replaced value beyond the 
+	 * memtable as well. The lookup runs after the append but under the 
+	 * same read lock, so the older memtable and tables it reads cannot 
+	 * change meanwhile, and later writes of the key go to the memtable.
+	 * @return the value the key had before, TOMBSTONE if it was deleted, or 
+	 * null; beyond the memtable only if findPrevious is set
+	 */
+	private byte[] write(byte[] key, byte[] value, boolean findPrevious) throws KVException {
+		ByteBuffer record = encodeLogRecord(key, value);
+		byte[] previous;
+		stateLock.readLock().lock();
+		try {
+			synchronized (writeMutex) {
+				while (record.hasRemaining()) {
+					logSize += log.write(record, logSize);
+				}
+				if (syncWrites) {
+					log.force(false);
+				}
+				previous = memtable.put(key, value);
+			}
+			if (findPrevious && previous == null && flushing != null) {
+				previous = flushing.get(key);
+			}
+			for (int i = 0; findPrevious && previous == null && i < tables.size(); i++) {
+				previous = tables.get(i).get(key);
+			}
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			stateLock.readLock().unlock();
+		}
+		
+		if (memtableBytes.addAndGet(key.length + value.length + MEMTABLE_ENTRY_OVERHEAD) >= memtableLimit) {
+			freezeMemtable();
+		}
+		return previous;
+	}
+	
+	/**
+	 * Hands the full memtable to the maintenance thread and starts a new 
+	 * memtable and log. Blocks while the previous memtable is still being 
+	 * flushed, which throttles writers to the disk's pace.
+	 */
+	private void freezeMemtable() throws KVException {
+		stateLock.writeLock().lock();
+		try {
+			while (flushing != null && !closed) {
+				flushDone.awaitUninterruptibly();
+			}
+			if (closed || memtableBytes.get() < memtableLimit) {
+				// Another writer already froze it
+				return;
+			}
+			log.close();
+			flushing = memtable;
+			flushingLogs = memtableLogs;
+			memtable = newMemtable();
+			memtableLogs = new ArrayList<Long>();
+			memtableBytes.set(0);
+			openLog(nextId.getAndIncrement());
+			flushNeeded.signalAll();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+	}
+	
+	private void maintenanceLoop() {
+		while (!closed) {
+			ConcurrentSkipListMap<byte[], byte[]> frozen;
+			List<Long> logs;
+			stateLock.writeLock().lock();
+			try {
+				while (flushing == null && !closed) {
+					flushNeeded.awaitUninterruptibly();
+				}
+				frozen = flushing;
+				logs = flushingLogs;
+			} finally {
+				stateLock.writeLock().unlock();
+			}
+			if (closed) {
+				return;
+			}
+			
+			try {
+				long id = nextId.getAndIncrement();
+				SSTable table = SSTable.write(directory, id, id, frozen.entrySet().iterator(), frozen.size());
+				stateLock.writeLock().lock();
+				try {
+					ArrayList<SSTable> updated = new ArrayList<SSTable>(tables.size() + 1);
+					updated.add(table);
+					updated.addAll(tables);
+					tables = updated;
+					flushing = null;
+					flushingLogs = null;
+					flushDone.signalAll();
+				} finally {
+					stateLock.writeLock().unlock();
+				}
+				for (long logId : logs) {
+					new File(directory, logId + WAL_SUFFIX).delete();
+				}
+				compactIfNeeded();
+			} catch (IOException e) {
+				// Leave the memtable frozen and retry; its log still holds the data
+				e.printStackTrace();
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Merges the newest run of similar sized tables, or every table once 
+	 * there are too many.
+	 */
+	private void compactIfNeeded() throws IOException {
+		while (!closed) {
+			List<SSTable> current = tables;
+			int runLength = 0;
+			if (current.size() >= MAX_TABLES) {
+				runLength = current.size();
+			} else if (current.size() >= COMPACTION_TRIGGER) {
+				long smallest = Long.MAX_VALUE;
+				long largest = 0;
+				for (int i = 0; i < COMPACTION_TRIGGER; i++) {
+					long size = current.get(i).size();
+					smallest = Math.min(smallest, size);
+					largest = Math.max(largest, size);
+				}
+				if (largest <= smallest * TIER_FACTOR) {
+					runLength = COMPACTION_TRIGGER;
+				}
+			}
+			if (runLength == 0) {
+				return;
+			}
+			compact(current.subList(0, runLength), runLength == current.size());
+		}
+	}
+	
+	/**
+	 * Merges the given newest tables into one. Tombstones can only be dropped 
+	 * when no older table remains that they would have to hide.
+	 */
+	private void compact(List<SSTable> inputs, boolean includesOldest) throws IOException {
+		long id = nextId.getAndIncrement();
+		long coveredFrom = inputs.get(inputs.size() - 1).id;
+		int expected = 0;
+		for (SSTable input : inputs) {
+			expected += input.entryCount;
+		}
+		SSTable output = SSTable.write(directory, id, coveredFrom, new MergingIterator(inputs, includesOldest), expected);
+		
+		stateLock.writeLock().lock();
+		try {
+			ArrayList<SSTable> updated = new ArrayList<SSTable>();
+			updated.add(output);
+			updated.addAll(tables.subList(inputs.size(), tables.size()));
+			tables = updated;
+		} finally {
+			stateLock.writeLock().unlock();
+		}
+		for (SSTable input : inputs) {
+			input.delete();
+		}
+	}
+	
+	/**
+	 * Iterates the records of several tables in key order. When tables 
+	 * share a key the newest table's record wins.
+	 */
+	private static class MergingIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		private final PriorityQueue<SSTable.Scanner> heads;
+		private final boolean dropTombstones;
+		private Map.Entry<byte[], byte[]> next;
+		
+		MergingIterator(List<SSTable> tables, boolean dropTombstones) throws IOException {
+			this.dropTombstones = dropTombstones;
+			heads = new PriorityQueue<SSTable.Scanner>(Math.max(1, tables.size()), new java.util.Comparator<SSTable.Scanner>() {
+				public int compare(SSTable.Scanner a, SSTable.Scanner b) {
+					int cmp = SSTable.KEY_ORDER.compare(a.key, b.key);
+					if (cmp != 0) {
+						return cmp;
+					}
+					return a.table().id > b.table().id ? -1 : 1;
+				}
+			});
+			for (SSTable table : tables) {
+				SSTable.Scanner scanner = table.scan();
+				if (scanner.next()) {
+					heads.add(scanner);
+				}
+			}
+			advance();
+		}
+		
+		private void advance() {
+			next = null;
+			try {
+				while (next == null && !heads.isEmpty()) {
+					SSTable.Scanner newest = heads.poll();
+					byte[] key = newest.key;
+					byte[] value = newest.value;
+					if (newest.next()) {
+						heads.add(newest);
+					}
+					// Skip older records of the same key
+					while (!heads.isEmpty() && SSTable.KEY_ORDER.compare(heads.peek().key, key) == 0) {
+						SSTable.Scanner older = heads.poll();
+						if (older.next()) {
+							heads.add(older);
+						}
+					}
+					if (!(dropTombstones && value.length == 0)) {
+						next = new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, value);
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public Map.Entry<byte[], byte[]> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<byte[], byte[]> current = next;
+			advance();
+			return current;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Opens the tables, discarding any that a finished compaction replaced, 
+	 * and replays the logs of memtables that were never flushed.
+	 */
+	private void recover() throws IOException {
+		TreeMap<Long, File> tableFiles = new TreeMap<Long, File>();
+		TreeMap<Long, File> logFiles = new TreeMap<Long, File>();
+		long maxId = -1;
+		File[] names = directory.listFiles();
+		if (names != null) {
+			for (File file : names) {
+				String name = file.getName();
+				if (name.endsWith(".tmp")) {
+					file.delete();
+				} else if (name.endsWith(SSTable.SUFFIX) && isId(name, SSTable.SUFFIX)) {
+					tableFiles.put(idOf(name, SSTable.SUFFIX), file);
+				} else if (name.endsWith(WAL_SUFFIX) && isId(name, WAL_SUFFIX)) {
+					logFiles.put(idOf(name, WAL_SUFFIX), file);
+				}
+			}
+		}
+		if (!tableFiles.isEmpty()) {
+			maxId = tableFiles.lastKey();
+		}
+		if (!logFiles.isEmpty()) {
+			maxId = Math.max(maxId, logFiles.lastKey());
+		}
+		nextId.set(maxId + 1);
+		
+		TreeMap<Long, SSTable> opened = new TreeMap<Long, SSTable>(Collections.reverseOrder());
+		for (Map.Entry<Long, File> file : tableFiles.entrySet()) {
+			opened.put(file.getKey(), SSTable.open(file.getValue(), file.getKey()));
+		}
+		for (SSTable table : new ArrayList<SSTable>(opened.values())) {
+			if (opened.containsKey(table.id) && table.coveredFrom < table.id) {
+				// A compaction finished but crashed before deleting its inputs
+				for (SSTable input : new ArrayList<SSTable>(opened.subMap(table.id - 1, true, table.coveredFrom, true).values())) {
+					opened.remove(input.id);
+					input.delete();
+				}
+			}
+		}
+		tables = new ArrayList<SSTable>(opened.values());
+		
+		for (Map.Entry<Long, File> file : logFiles.entrySet()) {
+			replayLog(file.getValue());
+			memtableLogs.add(file.getKey());
+		}
+	}
+	
+	private void replayLog(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			long offset = 0;
+			ByteBuffer header = ByteBuffer.allocate(WAL_HEADER);
+			while (offset + WAL_HEADER <= size) {
+				header.clear();
+				readFully(channel, header, offset);
+				header.flip();
+				int crc = header.getInt();
+				int keyLength = header.getInt();
+				int valueLength = header.getInt();
+				long bodyLength = (long) keyLength + Math.max(valueLength, 0);
+				if (keyLength <= 0 || valueLength < -1 || offset + WAL_HEADER + bodyLength > size) {
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate((int) bodyLength);
+				readFully(channel, body, offset + WAL_HEADER);
+				CRC32 checksum = new CRC32();
+				checksum.update(header.array(), 4, WAL_HEADER - 4);
+				checksum.update(body.array(), 0, body.capacity());
+				if ((int) checksum.getValue() != crc) {
+					break;
+				}
+				body.flip();
+				byte[] key = new byte[keyLength];
+				byte[] value = valueLength < 0 ? SSTable.TOMBSTONE : new byte[valueLength];
+				body.get(key);
+				body.get(value);
+				memtable.put(key, value);
+				memtableBytes.addAndGet(key.length + value.length + MEMTABLE_ENTRY_OVERHEAD);
+				offset += WAL_HEADER + bodyLength;
+			}
+			if (offset < size) {
+				System.out.println("LSMStore: dropping torn tail of " + file.getName() + " at " + offset);
+				channel.truncate(offset);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+	
+	private static ByteBuffer encodeLogRecord(byte[] key, byte[] value) {
+		ByteBuffer record = ByteBuffer.allocate(WAL_HEADER + key.length + value.length);
+		record.putInt(0);
+		record.putInt(key.length);
+		record.putInt(value.length == 0 ? -1 : value.length);
+		record.put(key);
+		record.put(value);
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), 4, record.capacity() - 4);
+		record.putInt(0, (int) checksum.getValue());
+		record.flip();
+		return record;
+	}
+	
+	private void openLog(long id) throws IOException {
+		log = FileChannel.open(new File(directory, id + WAL_SUFFIX).toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		logSize = log.size();
+		memtableLogs.add(id);
+	}
+	
+	private static boolean isId(String name, String suffix) {
+		return name.substring(0, name.length() - suffix.length()).matches("\\d+");
+	}
+	
+	private static long idOf(String name, String suffix) {
+		return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of log");
+			}
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * Simulated latency of the key-value store
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated access latency for KVStore. Each call to delay() sleeps for a
+ * duration drawn from the model, so the store can stand in for anything
+ * from memory to a loaded disk.
+ *
+ * Models can also be given as strings, which is how the store picks them
+ * up from system properties:
+ * <pre>
+ *   none
+ *   constant:&lt;millis&gt;
+ *   lognormal:&lt;median millis&gt;,&lt;sigma&gt;
+ *   histogram:&lt;upper bound millis&gt;=&lt;count&gt;,...
+ * </pre>
+ */
+public abstract class LatencyModel {
+
+	/**
+	 * @param random source of randomness for sampled models
+	 * @return the next latency, in nanoseconds
+	 */
+	public abstract long sampleNanos(Random random);
+
+	/**
+	 * Sleeps for the next sampled latency.
+	 */
+	public void delay() {
+		long nanos = sampleNanos(ThreadLocalRandom.current());
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return a model with no delay at all
+	 */
+	public static LatencyModel none() {
+		return constant(0);
+	}
+
+	/**
+	 * @param millis fixed delay of every operation
+	 */
+	public static LatencyModel constant(final double millis) {
+		final long nanos = toNanos(millis);
+		return new LatencyModel() {
+			public long sampleNanos(Random random) {
+				return nanos;
+			}
+
+			public String toString() {
+				return "constant:" + millis;
+			}
+		};
+	}
+
+	/**
+	 * Log-normal latency, the usual shape of disk and network service times:
+	 * most operations are close to the median with a long tail of slow ones.
+	 * @param medianMillis median delay
+	 * @param sigma standard deviation of the log of the delay; 0.5 gives a
+	 * 99th percentile of about 3.2 times the median
+	 */
+	public static LatencyModel lognormal(final double medianMillis, final double sigma) {
+		if (medianMillis <= 0 || sigma < 0) {
+			throw new IllegalArgumentException("lognormal needs a positive median and non-negative sigma");
+		}
+		final double mu = Math.log(medianMillis);
+		return new LatencyModel() {
+			public long sampleNanos(Random random) {
+				return toNanos(Math.exp(mu + sigma * random.nextGaussian()));
+			}
+
+			public String toString() {
+				return "lognormal:" + medianMillis + "," + sigma;
+			}
+		};
+	}
+
+	/**
+	 * Latency drawn from a recorded histogram. A bucket is picked in
+	 * proportion to its count and the delay is uniform between the previous
+	 * bucket's bound and its own.
+	 * @param upperBoundsMillis ascending bucket upper bounds
+	 * @param counts number of samples recorded in each bucket
+	 */
+	public static LatencyModel histogram(double[] upperBoundsMillis, long[] counts) {
+		if (upperBoundsMillis.length == 0 || upperBoundsMillis.length != counts.length) {
+			throw new IllegalArgumentException("histogram needs one count per bucket");
+		}
+		final double[] bounds = upperBoundsMillis.clone();
+		final long[] cumulative = new long[counts.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] < 0 || (i > 0 && bounds[i] <= bounds[i - 1])) {
+				throw new IllegalArgumentException("histogram buckets must be ascending with non-negative counts");
+			}
+			total += counts[i];
+			cumulative[i] = total;
+		}
+		if (total == 0) {
+			throw new IllegalArgumentException("histogram is empty");
+		}
+		final long samples = total;
+		return new LatencyModel() {
+			public long sampleNanos(Random random) {
+				long pick = (long) (random.nextDouble() * samples);
+				// First bucket whose cumulative count exceeds the pick
+				int bucket = 0;
+				int high = cumulative.length - 1;
+				while (bucket < high) {
+					int mid = (bucket + high) >>> 1;
+					if (cumulative[mid] > pick) {
+						high = mid;
+					} else {
+						bucket = mid + 1;
+					}
+				}
+				double low = bucket == 0 ? 0 : bounds[bucket - 1];
+				return toNanos(low + random.nextDouble() * (bounds[bucket] - low));
+			}
+
+			public String toString() {
+				return "histogram:" + Arrays.toString(bounds);
+			}
+		};
+	}
+
+	/**
+	 * Parses a model description in the format described above.
+	 * @param spec for instance "constant:1000" or "lognormal:5,0.5"
+	 * @throws IllegalArgumentException if the description is malformed
+	 */
+	public static LatencyModel parse(String spec) {
+		String trimmed = spec.trim();
+		int colon = trimmed.indexOf(':');
+		String kind = colon < 0 ? trimmed : trimmed.substring(0, colon);
+		String[] params = colon < 0 ? new String[0] : trimmed.substring(colon + 1).split(",");
+		try {
+			if (kind.equals("none") && params.length == 0) {
+				return none();
+			} else if (kind.equals("constant") && params.length == 1) {
+				return constant(Double.parseDouble(params[0]));
+			} else if (kind.equals("lognormal") && params.length == 2) {
+				return lognormal(Double.parseDouble(params[0]), Double.parseDouble(params[1]));
+			} else if (kind.equals("histogram") && params.length > 0) {
+				double[] bounds = new double[params.length];
+				long[] counts = new long[params.length];
+				for (int i = 0; i < params.length; i++) {
+					String[] bucket = params[i].split("=");
+					if (bucket.length != 2) {
+						throw new IllegalArgumentException("Bad latency model: " + spec);
+					}
+					bounds[i] = Double.parseDouble(bucket[0]);
+					counts[i] = Long.parseLong(bucket[1]);
+				}
+				return histogram(bounds, counts);
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException("Bad latency model: " + spec);
+	}
+
+	/**
+	 * @param property name of a system property holding a model description
+	 * @param fallback model to use if the property is not set
+	 */
+	public static LatencyModel fromProperty(String property, LatencyModel fallback) {
+		String spec = System.getProperty(property);
+		return spec == null ? fallback : parse(spec);
+	}
+
+	private static long toNanos(double millis) {
+		return (long) (millis * 1000000);
+	}
+}
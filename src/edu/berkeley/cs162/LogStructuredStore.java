@@ -0,0 +1,506 @@
+/**
+ * Log-structured persistent store
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable disk-backed store in the style of Bitcask. Every put and del is 
+ * appended to the active data file, and an in-memory key directory maps 
+ * each live key to the file and offset of its latest value, so a get is a 
+ * single positional read. 
+ * 
+ * When the active file reaches maxFileSize a new one is started. A 
+ * background thread merges the older files once enough of their bytes are 
+ * overwritten or deleted: live records are copied to a new file and the 
+ * inputs are removed. On startup the files are replayed in order to rebuild 
+ * the key directory; a record with a bad checksum (a write torn by a crash) 
+ * ends its file and is truncated away.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class LogStructuredStore<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	private static final String SUFFIX = ".data";
+	// Record layout: CRC32 of the rest, key length, value length (-1 for a delete), key, value
+	private static final int HEADER = 12;
+	private static final int TOMBSTONE = -1;
+	
+	private static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+	private static final long MERGE_CHECK_MILLIS = 10000;
+	// Merge once at least this share of the bytes on disk is garbage
+	private static final double MERGE_GARBAGE_RATIO = 0.5;
+	private static final long MERGE_MIN_GARBAGE = 1L << 20;
+	
+	private final File directory;
+	private final long maxFileSize;
+	private final boolean syncWrites;
+	
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<K, Location> keyDir = new HashMap<K, Location>();
+	private final TreeMap<Long, FileChannel> files = new TreeMap<Long, FileChannel>();
+	private long activeId;
+	private FileChannel active;
+	private long activeSize;
+	private long totalBytes = 0;
+	private long garbageBytes = 0;
+	
+	private final Thread merger;
+	private volatile boolean closed = false;
+	
+	/**
+	 * Where the latest record of a key lives.
+	 */
+	private static class Location {
+		final long fileId;
+		final long offset;
+		final int recordLength;
+		final int valueLength;
+		
+		Location(long fileId, long offset, int recordLength, int valueLength) {
+			this.fileId = fileId;
+			this.offset = offset;
+			this.recordLength = recordLength;
+			this.valueLength = valueLength;
+		}
+		
+		boolean sameRecord(Location other) {
+			return other != null && fileId == other.fileId && offset == other.offset;
+		}
+	}
+	
+	/**
+	 * Opens the store in the given directory with 64 MB data files, 
+	 * recovering any data already there.
+	 * @param directory where the data files live; created if missing
+	 * @param syncWrites whether every put and del is forced to disk before returning
+	 * @throws KVException if the existing data files cannot be read
+	 */
+	public LogStructuredStore(String directory, boolean syncWrites) throws KVException {
+		this(new File(directory), DEFAULT_MAX_FILE_SIZE, syncWrites);
+	}
+	
+	/**
+	 * @param directory where the data files live; created if missing
+	 * @param maxFileSize size at which the active data file is closed and a new one started
+	 * @param syncWrites whether every put and del is forced to disk before returning
+	 * @throws KVException if the existing data files cannot be read
+	 */
+	public LogStructuredStore(File directory, long maxFileSize, boolean syncWrites) throws KVException {
+		this.directory = directory;
+		this.maxFileSize = maxFileSize;
+		this.syncWrites = syncWrites;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create " + directory);
+			}
+			recover();
+			openActive(files.isEmpty() ? 0 : files.lastKey() + 1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		}
+		
+		merger = new Thread() {
+			public void run() {
+				mergeLoop();
+			}
+		};
+		merger.setDaemon(true);
+		merger.start();
+	}
+	
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		byte[] valueBytes = KVMessage.encodeBytes(value);
+		ByteBuffer record = encodeRecord(keyBytes, valueBytes);
+		
+		lock.writeLock().lock();
+		try {
+			Location previous = keyDir.get(key);
+			keyDir.put(key, append(record, valueBytes.length));
+			if (previous != null) {
+				garbageBytes += previous.recordLength;
+			}
+			return previous != null;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(K key) throws KVException {
+		byte[] valueBytes;
+		lock.readLock().lock();
+		try {
+			Location location = keyDir.get(key);
+			if (location == null) {
+				return null;
+			}
+			valueBytes = new byte[location.valueLength];
+			long valueOffset = location.offset + location.recordLength - location.valueLength;
+			readFully(files.get(location.fileId), ByteBuffer.wrap(valueBytes), valueOffset);
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			lock.readLock().unlock();
+		}
+		return (V) KVMessage.decodeBytes(valueBytes);
+	}
+
+	@Override
+	public void del(K key) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		ByteBuffer record = encodeRecord(keyBytes, null);
+		
+		lock.writeLock().lock();
+		try {
+			Location previous = keyDir.remove(key);
+			if (previous == null) {
+				return;
+			}
+			Location tombstone = append(record, TOMBSTONE);
+			garbageBytes += previous.recordLength + tombstone.recordLength;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Stops the merge thread and closes every data file.
+	 */
+	public void close() {
+		closed = true;
+		merger.interrupt();
+		lock.writeLock().lock();
+		try {
+			for (FileChannel channel : files.values()) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			files.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Rewrites the live records of every data file but the active one into a 
+	 * single new file and deletes the old files. Runs concurrently with 
+	 * reads and writes; only the final switch-over takes the write lock.
+	 * @throws KVException if the merge output cannot be written
+	 */
+	public synchronized void merge() throws KVException {
+		TreeMap<Long, FileChannel> inputs;
+		long mergeId;
+		long garbageAtStart;
+		lock.writeLock().lock();
+		try {
+			// Seal the active file and reserve an id for the output that sorts 
+			// after every input but before the new active file, so replaying 
+			// the files in id order still sees the newest record last
+			inputs = new TreeMap<Long, FileChannel>(files);
+			mergeId = activeId + 1;
+			openActive(activeId + 2);
+			garbageAtStart = garbageBytes;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		FileChannel output = null;
+		try {
+			output = openChannel(mergeId);
+			long outputSize = 0;
+			HashMap<K, Location[]> moved = new HashMap<K, Location[]>();
+			long inputBytes = 0;
+			for (Map.Entry<Long, FileChannel> file : inputs.entrySet()) {
+				long id = file.getKey();
+				FileChannel input = file.getValue();
+				long size = input.size();
+				inputBytes += size;
+				long offset = 0;
+				while (offset < size) {
+					ParsedRecord parsed = readRecord(id, input, offset, size);
+					if (parsed == null) {
+						break;
+					}
+					offset += parsed.location.recordLength;
+					if (parsed.location.valueLength == TOMBSTONE) {
+						continue;
+					}
+					lock.readLock().lock();
+					boolean live;
+					try {
+						live = parsed.location.sameRecord(keyDir.get(parsed.key));
+					} finally {
+						lock.readLock().unlock();
+					}
+					if (live) {
+						parsed.record.rewind();
+						writeFully(output, parsed.record, outputSize);
+						moved.put(parsed.key, new Location[] { parsed.location, 
+								new Location(mergeId, outputSize, parsed.location.recordLength, parsed.location.valueLength) });
+						outputSize += parsed.location.recordLength;
+					}
+				}
+			}
+			output.force(true);
+			
+			lock.writeLock().lock();
+			try {
+				files.put(mergeId, output);
+				for (Map.Entry<K, Location[]> entry : moved.entrySet()) {
+					// Keys written while the merge ran already point at the newer record
+					if (entry.getValue()[0].sameRecord(keyDir.get(entry.getKey()))) {
+						keyDir.put(entry.getKey(), entry.getValue()[1]);
+					}
+				}
+				for (long id : inputs.keySet()) {
+					files.remove(id).close();
+					new File(directory, id + SUFFIX).delete();
+				}
+				totalBytes += outputSize - inputBytes;
+				garbageBytes = Math.max(0, garbageBytes - garbageAtStart);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (output != null && !files.containsValue(output)) {
+				try {
+					output.close();
+				} catch (IOException e1) {
+				}
+				new File(directory, mergeId + SUFFIX).delete();
+			}
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		}
+	}
+	
+	private void mergeLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(MERGE_CHECK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			boolean worthMerging;
+			lock.readLock().lock();
+			try {
+				worthMerging = garbageBytes >= MERGE_MIN_GARBAGE && garbageBytes >= totalBytes * MERGE_GARBAGE_RATIO;
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (worthMerging && !closed) {
+				try {
+					merge();
+				} catch (KVException e) {
+					System.out.println("LogStructuredStore merge failed: " + e.getMsg().getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the key directory by replaying every data file in id order.
+	 */
+	private void recover() throws IOException, KVException {
+		File[] names = directory.listFiles();
+		if (names != null) {
+			for (File file : names) {
+				String name = file.getName();
+				if (name.endsWith(SUFFIX) && name.substring(0, name.length() - SUFFIX.length()).matches("\\d+")) {
+					long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+					files.put(id, openChannel(id));
+				}
+			}
+		}
+		
+		for (Map.Entry<Long, FileChannel> file : files.entrySet()) {
+			FileChannel channel = file.getValue();
+			long size = channel.size();
+			long offset = 0;
+			while (offset < size) {
+				ParsedRecord parsed = readRecord(file.getKey(), channel, offset, size);
+				if (parsed == null) {
+					System.out.println("LogStructuredStore: dropping torn tail of " + file.getKey() + SUFFIX + " at " + offset);
+					channel.truncate(offset);
+					break;
+				}
+				Location previous;
+				if (parsed.location.valueLength == TOMBSTONE) {
+					previous = keyDir.remove(parsed.key);
+					garbageBytes += parsed.location.recordLength;
+				} else {
+					previous = keyDir.put(parsed.key, parsed.location);
+				}
+				if (previous != null) {
+					garbageBytes += previous.recordLength;
+				}
+				offset += parsed.location.recordLength;
+			}
+			totalBytes += offset;
+		}
+	}
+	
+	/**
+	 * A record read back from a data file.
+	 */
+	private class ParsedRecord {
+		K key;
+		Location location;
+		ByteBuffer record;
+	}
+	
+	/**
+	 * Reads and verifies the record at offset.
+	 * @return the record, or null if it is truncated or fails its checksum
+	 */
+	@SuppressWarnings("unchecked")
+	private ParsedRecord readRecord(long fileId, FileChannel channel, long offset, long size) throws IOException {
+		if (offset + HEADER > size) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		readFully(channel, header, offset);
+		header.flip();
+		int crc = header.getInt();
+		int keyLength = header.getInt();
+		int valueLength = header.getInt();
+		if (keyLength <= 0 || valueLength < TOMBSTONE) {
+			return null;
+		}
+		long recordLength = (long) HEADER + keyLength + Math.max(valueLength, 0);
+		if (offset + recordLength > size || recordLength > Integer.MAX_VALUE) {
+			return null;
+		}
+		
+		ByteBuffer record = ByteBuffer.allocate((int) recordLength);
+		readFully(channel, record, offset);
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), 4, record.capacity() - 4);
+		if ((int) checksum.getValue() != crc) {
+			return null;
+		}
+		
+		ParsedRecord parsed = new ParsedRecord();
+		try {
+			parsed.key = (K) KVMessage.decodeBytes(record.array(), HEADER, keyLength);
+		} catch (KVException e) {
+			return null;
+		}
+		parsed.location = new Location(fileId, offset, (int) recordLength, valueLength);
+		parsed.record = record;
+		return parsed;
+	}
+	
+	private static ByteBuffer encodeRecord(byte[] keyBytes, byte[] valueBytes) {
+		int valueLength = valueBytes == null ? TOMBSTONE : valueBytes.length;
+		ByteBuffer record = ByteBuffer.allocate(HEADER + keyBytes.length + Math.max(valueLength, 0));
+		record.putInt(0);
+		record.putInt(keyBytes.length);
+		record.putInt(valueLength);
+		record.put(keyBytes);
+		if (valueBytes != null) {
+			record.put(valueBytes);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), 4, record.capacity() - 4);
+		record.putInt(0, (int) checksum.getValue());
+		record.flip();
+		return record;
+	}
+	
+	/**
+	 * Appends a record to the active file, starting a new one if it is full. 
+	 * Must hold the write lock.
+	 */
+	private Location append(ByteBuffer record, int valueLength) throws IOException {
+		int length = record.remaining();
+		if (activeSize > 0 && activeSize + length > maxFileSize) {
+			openActive(activeId + 1);
+		}
+		long offset = activeSize;
+		writeFully(active, record, offset);
+		if (syncWrites) {
+			active.force(false);
+		}
+		activeSize += length;
+		totalBytes += length;
+		return new Location(activeId, offset, length, valueLength);
+	}
+	
+	private void openActive(long id) throws IOException {
+		active = openChannel(id);
+		activeId = id;
+		activeSize = active.size();
+		files.put(id, active);
+	}
+	
+	private FileChannel openChannel(long id) throws IOException {
+		return FileChannel.open(new File(directory, id + SUFFIX).toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of data file");
+			}
+			position += read;
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,539 @@
+/**
+ * Memory-mapped hash table store
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Disk-backed store for read-mostly shards that keeps both its hash table
+ * and its values in memory-mapped files. A get probes the mapped table and
+ * deserializes the value straight out of the mapped heap, so a warm read is
+ * served from the page cache without any system call. Opening an existing
+ * store only maps the files; nothing is replayed or rebuilt.
+ *
+ * The index file holds an open-addressing table with linear probing. Each
+ * slot is [hash][state][heap offset]. The heap file is append-only and holds
+ * [key length][value length][key][value] records. Overwrites and deletes
+ * leave garbage in the heap and deleted markers in the table.
+ *
+ * Both files grow by remapping them at a larger size. When the table passes
+ * its load factor, or the heap fills up with mostly garbage, the store
+ * writes a fresh index (and heap) under a new generation and renames the
+ * index into place, which is the commit point after a crash.
+ *
+ * A single mapping is limited to 2 GB, which bounds the heap size.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class MappedHashStore<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	private static final String INDEX_FILE = "index.map";
+	private static final String HEAP_PREFIX = "heap.";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final int MAGIC = 0x4d484d31;
+
+	// Index header: magic, heap generation, slot count, live entries, used slots, heap end, heap garbage
+	private static final int INDEX_HEADER = 64;
+	private static final int H_MAGIC = 0;
+	private static final int H_GENERATION = 4;
+	private static final int H_SLOTS = 8;
+	private static final int H_LIVE = 12;
+	private static final int H_USED = 16;
+	private static final int H_HEAP_END = 24;
+	private static final int H_GARBAGE = 32;
+
+	private static final int SLOT_SIZE = 16;
+	private static final int EMPTY = 0;
+	private static final int LIVE = 1;
+	private static final int DELETED = 2;
+
+	private static final int RECORD_HEADER = 8;
+	// The heap starts after a magic number so that offset 0 is never a record
+	private static final int HEAP_START = 8;
+
+	private static final int DEFAULT_SLOTS = 1 << 14;
+	private static final long DEFAULT_HEAP_BYTES = 16L << 20;
+	// Live plus deleted slots, as a fraction of all slots, before the table is rebuilt larger
+	private static final double MAX_LOAD = 0.6;
+
+	private final File directory;
+	private final boolean syncWrites;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private FileChannel indexChannel;
+	private MappedByteBuffer index;
+	private FileChannel heapChannel;
+	private MappedByteBuffer heap;
+	private int slotCount;
+
+	/**
+	 * Opens the store in the given directory, creating an empty one if it
+	 * does not exist yet.
+	 * @param directory where the index and heap files live; created if missing
+	 * @param syncWrites whether every put and del is forced to disk before returning
+	 * @throws KVException if the existing files cannot be mapped
+	 */
+	public MappedHashStore(String directory, boolean syncWrites) throws KVException {
+		this(new File(directory), DEFAULT_SLOTS, DEFAULT_HEAP_BYTES, syncWrites);
+	}
+
+	/**
+	 * @param directory where the index and heap files live; created if missing
+	 * @param initialSlots table size of a new store, rounded up to a power of two
+	 * @param initialHeapBytes heap file size of a new store
+	 * @param syncWrites whether every put and del is forced to disk before returning
+	 * @throws KVException if the existing files cannot be mapped
+	 */
+	public MappedHashStore(File directory, int initialSlots, long initialHeapBytes, boolean syncWrites) throws KVException {
+		this.directory = directory;
+		this.syncWrites = syncWrites;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create " + directory);
+			}
+			if (new File(directory, INDEX_FILE).exists()) {
+				open();
+			} else {
+				create(Integer.highestOneBit(Math.max(2, initialSlots) * 2 - 1),
+						Math.max(HEAP_START + RECORD_HEADER, initialHeapBytes));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		}
+	}
+
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		byte[] valueBytes = KVMessage.encodeBytes(value);
+		int hash = hash(keyBytes);
+		int recordLength = RECORD_HEADER + keyBytes.length + valueBytes.length;
+
+		lock.writeLock().lock();
+		try {
+			ensureHeap(recordLength);
+			int slot = findSlot(keyBytes, hash);
+			boolean existed = slot >= 0;
+			if (!existed) {
+				ensureTable();
+				slot = findSlot(keyBytes, hash);
+			}
+
+			long offset = index.getLong(H_HEAP_END);
+			heap.putInt((int) offset, keyBytes.length);
+			heap.putInt((int) offset + 4, valueBytes.length);
+			ByteBuffer out = heap.duplicate();
+			out.position((int) offset + RECORD_HEADER);
+			out.put(keyBytes);
+			out.put(valueBytes);
+
+			if (existed) {
+				index.putLong(H_GARBAGE, index.getLong(H_GARBAGE) + recordLengthAt(slotOffset(slot)));
+			} else {
+				slot = -slot - 1;
+				if (index.getInt(slotPosition(slot) + 4) == EMPTY) {
+					index.putInt(H_USED, index.getInt(H_USED) + 1);
+				}
+				index.putInt(H_LIVE, index.getInt(H_LIVE) + 1);
+			}
+			// The slot is written after its record so a reader never follows it into unwritten bytes
+			writeSlot(slot, hash, LIVE, offset);
+			index.putLong(H_HEAP_END, offset + recordLength);
+			sync();
+			return existed;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(K key) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		int hash = hash(keyBytes);
+		lock.readLock().lock();
+		try {
+			int slot = findSlot(keyBytes, hash);
+			if (slot < 0) {
+				return null;
+			}
+			long offset = slotOffset(slot);
+			int keyLength = heap.getInt((int) offset);
+			int valueLength = heap.getInt((int) offset + 4);
+			ByteBuffer value = heap.duplicate();
+			value.position((int) offset + RECORD_HEADER + keyLength);
+			value.limit(value.position() + valueLength);
+			// Must finish while holding the lock, since a rebuild replaces the heap
+			ObjectInputStream in = new ObjectInputStream(new BufferInputStream(value));
+			return (V) in.readObject();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
+		} catch (ClassNotFoundException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Decoding object class not found"));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void del(K key) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		int hash = hash(keyBytes);
+		lock.writeLock().lock();
+		try {
+			int slot = findSlot(keyBytes, hash);
+			if (slot < 0) {
+				return;
+			}
+			index.putLong(H_GARBAGE, index.getLong(H_GARBAGE) + recordLengthAt(slotOffset(slot)));
+			index.putInt(H_LIVE, index.getInt(H_LIVE) - 1);
+			writeSlot(slot, hash, DELETED, 0);
+			sync();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of keys in the store
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return index.getInt(H_LIVE);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces both files to disk and closes them.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			index.force();
+			heap.force();
+			indexChannel.close();
+			heapChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static int hash(byte[] keyBytes) {
+		int h = Arrays.hashCode(keyBytes);
+		return h ^ (h >>> 16);
+	}
+
+	private static int slotPosition(int slot) {
+		return INDEX_HEADER + slot * SLOT_SIZE;
+	}
+
+	private long slotOffset(int slot) {
+		return index.getLong(slotPosition(slot) + 8);
+	}
+
+	private void writeSlot(int slot, int hash, int state, long offset) {
+		int position = slotPosition(slot);
+		index.putInt(position, hash);
+		index.putLong(position + 8, offset);
+		index.putInt(position + 4, state);
+	}
+
+	private int recordLengthAt(long offset) {
+		return RECORD_HEADER + heap.getInt((int) offset) + heap.getInt((int) offset + 4);
+	}
+
+	/**
+	 * Probes the table for the key.
+	 * @return the slot holding the key, or -(slot to insert at) - 1 if it is absent
+	 */
+	private int findSlot(byte[] keyBytes, int hash) {
+		int mask = slotCount - 1;
+		int firstDeleted = -1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int position = slotPosition(slot);
+			int state = index.getInt(position + 4);
+			if (state == EMPTY) {
+				return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+			} else if (state == DELETED) {
+				if (firstDeleted < 0) {
+					firstDeleted = slot;
+				}
+			} else if (index.getInt(position) == hash && keyEquals(index.getLong(position + 8), keyBytes)) {
+				return slot;
+			}
+		}
+	}
+
+	private boolean keyEquals(long offset, byte[] keyBytes) {
+		int position = (int) offset;
+		if (heap.getInt(position) != keyBytes.length) {
+			return false;
+		}
+		position += RECORD_HEADER;
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (heap.get(position + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Makes room in the heap for a record, either by compacting it when most
+	 * of it is garbage or by remapping the file at twice the size.
+	 */
+	private void ensureHeap(int recordLength) throws IOException, KVException {
+		long heapEnd = index.getLong(H_HEAP_END);
+		if (heapEnd + recordLength <= heap.capacity()) {
+			return;
+		}
+		long garbage = index.getLong(H_GARBAGE);
+		long live = heapEnd - HEAP_START - garbage;
+		if (garbage >= live && live + recordLength <= heap.capacity() - HEAP_START) {
+			rebuild(slotCount, heap.capacity(), true);
+			return;
+		}
+		long size = heap.capacity();
+		while (size < heapEnd + recordLength) {
+			size *= 2;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new KVException(new KVMessage("resp", "IO Error"));
+		}
+		heap = heapChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Rebuilds the table at twice the size once live and deleted slots
+	 * pass the load factor. Rebuilding also clears the deleted markers, so
+	 * the table stays the same size if that alone is enough.
+	 */
+	private void ensureTable() throws IOException {
+		if (index.getInt(H_USED) + 1 <= slotCount * MAX_LOAD) {
+			return;
+		}
+		int live = index.getInt(H_LIVE);
+		rebuild(live + 1 <= slotCount * MAX_LOAD / 2 ? slotCount : slotCount * 2, heap.capacity(), false);
+	}
+
+	/**
+	 * Writes a new index with the given number of slots, and if compactHeap
+	 * is set a new heap holding only the live records, then renames the new
+	 * index into place and remaps.
+	 */
+	private void rebuild(int newSlotCount, long heapBytes, boolean compactHeap) throws IOException {
+		int generation = index.getInt(H_GENERATION);
+		int newGeneration = compactHeap ? generation + 1 : generation;
+		File indexTmp = new File(directory, INDEX_FILE + TMP_SUFFIX);
+		indexTmp.delete();
+		FileChannel newIndexChannel = openChannel(indexTmp);
+		MappedByteBuffer newIndex = newIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+				INDEX_HEADER + (long) newSlotCount * SLOT_SIZE);
+
+		FileChannel newHeapChannel = heapChannel;
+		MappedByteBuffer newHeap = heap;
+		long heapEnd = index.getLong(H_HEAP_END);
+		long garbage = index.getLong(H_GARBAGE);
+		if (compactHeap) {
+			File heapFile = heapFile(newGeneration);
+			heapFile.delete();
+			newHeapChannel = openChannel(heapFile);
+			newHeap = newHeapChannel.map(FileChannel.MapMode.READ_WRITE, 0, heapBytes);
+			newHeap.putInt(0, MAGIC);
+			heapEnd = HEAP_START;
+			garbage = 0;
+		}
+
+		int mask = newSlotCount - 1;
+		int live = 0;
+		for (int slot = 0; slot < slotCount; slot++) {
+			int position = slotPosition(slot);
+			if (index.getInt(position + 4) != LIVE) {
+				continue;
+			}
+			int hash = index.getInt(position);
+			long offset = index.getLong(position + 8);
+			if (compactHeap) {
+				int length = recordLengthAt(offset);
+				ByteBuffer record = heap.duplicate();
+				record.position((int) offset);
+				record.limit((int) offset + length);
+				ByteBuffer out = newHeap.duplicate();
+				out.position((int) heapEnd);
+				out.put(record);
+				offset = heapEnd;
+				heapEnd += length;
+			}
+			int target = hash & mask;
+			while (newIndex.getInt(slotPosition(target) + 4) != EMPTY) {
+				target = (target + 1) & mask;
+			}
+			newIndex.putInt(slotPosition(target), hash);
+			newIndex.putInt(slotPosition(target) + 4, LIVE);
+			newIndex.putLong(slotPosition(target) + 8, offset);
+			live++;
+		}
+
+		newIndex.putInt(H_MAGIC, MAGIC);
+		newIndex.putInt(H_GENERATION, newGeneration);
+		newIndex.putInt(H_SLOTS, newSlotCount);
+		newIndex.putInt(H_LIVE, live);
+		newIndex.putInt(H_USED, live);
+		newIndex.putLong(H_HEAP_END, heapEnd);
+		newIndex.putLong(H_GARBAGE, garbage);
+		newHeap.force();
+		newIndex.force();
+		Files.move(indexTmp.toPath(), new File(directory, INDEX_FILE).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		indexChannel.close();
+		indexChannel = newIndexChannel;
+		index = newIndex;
+		slotCount = newSlotCount;
+		if (compactHeap) {
+			heapChannel.close();
+			heapFile(generation).delete();
+			heapChannel = newHeapChannel;
+			heap = newHeap;
+		}
+	}
+
+	private void create(int slots, long heapBytes) throws IOException {
+		File heapFile = heapFile(0);
+		heapFile.delete();
+		heapChannel = openChannel(heapFile);
+		heap = heapChannel.map(FileChannel.MapMode.READ_WRITE, 0, heapBytes);
+		heap.putInt(0, MAGIC);
+		heap.force();
+
+		File indexTmp = new File(directory, INDEX_FILE + TMP_SUFFIX);
+		indexTmp.delete();
+		indexChannel = openChannel(indexTmp);
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) slots * SLOT_SIZE);
+		index.putInt(H_MAGIC, MAGIC);
+		index.putInt(H_GENERATION, 0);
+		index.putInt(H_SLOTS, slots);
+		index.putLong(H_HEAP_END, HEAP_START);
+		index.force();
+		Files.move(indexTmp.toPath(), new File(directory, INDEX_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		slotCount = slots;
+	}
+
+	/**
+	 * Maps the committed index and the heap generation it names, and removes
+	 * files left behind by a rebuild that did not finish.
+	 */
+	private void open() throws IOException {
+		indexChannel = openChannel(new File(directory, INDEX_FILE));
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, indexChannel.size());
+		if (index.capacity() < INDEX_HEADER || index.getInt(H_MAGIC) != MAGIC) {
+			throw new IOException("Not a mapped store index: " + directory);
+		}
+		slotCount = index.getInt(H_SLOTS);
+		int generation = index.getInt(H_GENERATION);
+		heapChannel = openChannel(heapFile(generation));
+		heap = heapChannel.map(FileChannel.MapMode.READ_WRITE, 0, heapChannel.size());
+
+		File[] names = directory.listFiles();
+		if (names != null) {
+			for (File file : names) {
+				String name = file.getName();
+				if (name.endsWith(TMP_SUFFIX) || (name.startsWith(HEAP_PREFIX) && !file.equals(heapFile(generation)))) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private File heapFile(int generation) {
+		return new File(directory, HEAP_PREFIX + generation);
+	}
+
+	private static FileChannel openChannel(File file) throws IOException {
+		return FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private void sync() {
+		if (syncWrites) {
+			heap.force();
+			index.force();
+		}
+	}
+
+	/**
+	 * Reads from a buffer without copying it first.
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
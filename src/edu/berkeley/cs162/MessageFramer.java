@@ -0,0 +1,219 @@
+/**
+ * Framing of messages on a keep-alive connection
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing of KVMessages, so that one connection can carry
+ * many messages instead of using end-of-stream to mark where the only
+ * message ends. A frame is a 4 byte big-endian payload length followed by
+ * the message's XML, or its binary form (see KVMessage.toBinary()), which
+ * is told apart by its first byte.
+ *
+ * Frames are at most MAX_FRAME_BYTES long, so the first byte of a framed
+ * connection is always 0, while an unframed message starts with '<'.
+ * Servers use this to tell from the first byte which protocol a client
+ * speaks, and keep framed connections open for further requests. Servers
+ * answer a framed connection in the codec of its first frame, so a client
+ * chooses binary just by sending it.
+ */
+public class MessageFramer {
+	public static final int HEADER_BYTES = 4;
+	// Far above the largest valid message, a 256 byte key and a 128 KB value
+	public static final int MAX_FRAME_BYTES = 1 << 20;
+	// How long a blocking handler keeps an idle framed connection open
+	public static final int KEEP_ALIVE_MILLIS = 60000;
+
+	private MessageFramer() {
+	}
+
+	/**
+	 * @param firstByte first byte received on a connection
+	 * @return true if the client sends frames, false if it sends one
+	 * unframed message
+	 */
+	public static boolean isFramed(int firstByte) {
+		return firstByte == 0;
+	}
+
+	/**
+	 * @param payload buffer holding a payload
+	 * @param offset start of the payload
+	 * @return true if the payload is in the binary codec rather than XML
+	 */
+	public static boolean isBinary(byte[] payload, int offset) {
+		return payload[offset] == KVMessage.BINARY_MAGIC;
+	}
+
+	/**
+	 * Tells which codec the next frame uses without consuming it, waiting
+	 * for its first bytes if need be.
+	 * @param in stream positioned at a frame; must support mark()
+	 * @return true if the frame is in the binary codec, false if it is XML
+	 * or the stream ends first
+	 * @throws IOException if reading fails
+	 */
+	public static boolean peekBinary(DataInputStream in) throws IOException {
+		in.mark(HEADER_BYTES + 1);
+		try {
+			return in.skip(HEADER_BYTES) == HEADER_BYTES && in.read() == (KVMessage.BINARY_MAGIC & 0xFF);
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * @param message message to encode
+	 * @return the message's XML payload, without the length prefix
+	 * @throws KVException if the message cannot be converted to XML
+	 */
+	public static byte[] encode(KVMessage message) throws KVException {
+		return message.toXML().getBytes();
+	}
+
+	/**
+	 * @param message message to encode
+	 * @param binary use the binary codec rather than XML
+	 * @return the message's payload, without the length prefix
+	 * @throws KVException if the message cannot be converted to XML
+	 */
+	public static byte[] encode(KVMessage message, boolean binary) throws KVException {
+		return binary ? message.toBinary() : encode(message);
+	}
+
+	/**
+	 * @param payload buffer holding a payload
+	 * @param offset start of the payload
+	 * @param length length of the payload
+	 * @return the decoded message
+	 * @throws KVException if the payload is not a valid message
+	 */
+	public static KVMessage decode(byte[] payload, int offset, int length) throws KVException {
+		if (length > 0 && isBinary(payload, offset)) {
+			return KVMessage.fromBinary(payload, offset, length);
+		}
+		try {
+			return new KVMessage(new ByteArrayInputStream(payload, offset, length));
+		} catch (SocketTimeoutException e) {
+			// Not possible when reading from memory
+			throw new KVException(new KVMessage("resp", "Unknown Error: " + e.getMessage()));
+		}
+	}
+
+	/**
+	 * @param message message to frame
+	 * @return a buffer holding the length prefix and XML payload, ready to
+	 * write
+	 * @throws KVException if the message cannot be converted to XML
+	 */
+	public static ByteBuffer frame(KVMessage message) throws KVException {
+		return frame(message, false);
+	}
+
+	/**
+	 * @param message message to frame
+	 * @param binary use the binary codec rather than XML
+	 * @return a buffer holding the length prefix and payload, ready to write
+	 * @throws KVException if the message cannot be converted to XML
+	 */
+	public static ByteBuffer frame(KVMessage message, boolean binary) throws KVException {
+		byte[] payload = encode(message, binary);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+		frame.putInt(payload.length);
+		frame.put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Writes a framed message and flushes the stream.
+	 * @param out stream to write to
+	 * @param message message to send
+	 * @throws IOException if writing fails
+	 * @throws KVException if the message cannot be converted to XML
+	 */
+	public static void write(OutputStream out, KVMessage message) throws IOException, KVException {
+		write(out, message, false);
+	}
+
+	/**
+	 * Writes a framed message and flushes the stream.
+	 * @param out stream to write to
+	 * @param message message to send
+	 * @param binary use the binary codec rather than XML
+	 * @throws IOException if writing fails
+	 * @throws KVException if the message cannot be converted to XML
+	 */
+	public static void write(OutputStream out, KVMessage message, boolean binary) throws IOException, KVException {
+		ByteBuffer frame = frame(message, binary);
+		out.write(frame.array(), 0, frame.limit());
+		out.flush();
+	}
+
+	/**
+	 * Reads one framed message, in either codec. An unframed message, which servers send when
+	 * they turn a connection away before reading from it, is read up to the
+	 * end of the stream instead.
+	 * @param in stream to read from
+	 * @return the message, or null if the stream ended between frames
+	 * @throws IOException if reading fails, the stream ends inside a frame
+	 * or the length prefix is out of range
+	 * @throws KVException if the frame does not hold a valid message; the
+	 * stream is still positioned at the next frame
+	 */
+	public static KVMessage read(DataInputStream in) throws IOException, KVException {
+		int first = in.read();
+		if (first < 0) {
+			return null;
+		}
+		if (!isFramed(first)) {
+			InputStream rest = new SequenceInputStream(new ByteArrayInputStream(new byte[] { (byte) first }), in);
+			return new KVMessage(rest);
+		}
+		int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		if (length < 0 || length > MAX_FRAME_BYTES) {
+			throw new IOException("Bad frame length " + length);
+		}
+		byte[] payload = new byte[length];
+		try {
+			in.readFully(payload);
+		} catch (EOFException e) {
+			throw new EOFException("Stream ended inside a frame");
+		}
+		return decode(payload, 0, length);
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * Off-heap cache for the key-value store
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A cache that keeps serialized keys and values outside the Java heap, in 
+ * direct ByteBuffer slabs. The only on-heap state is an open addressing 
+ * index of primitive arrays (key hash and slab address per entry), so a 
+ * large cache adds almost nothing for the garbage collector to trace. 
+ * Values are deserialized on every get.
+ * 
+ * Entries are appended to the current slab. When all slabs are full the 
+ * oldest slab is cleared and reused, dropping every entry stored in it, so 
+ * eviction is FIFO at slab granularity rather than LRU. Overwritten and 
+ * deleted entries keep their slab space until their slab is reused.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class OffHeapKVCache<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	// Record layout: key length, value length, key bytes, value bytes
+	private static final int RECORD_HEADER = 8;
+	private static final int MIN_INDEX_SIZE = 16;
+	
+	private final int slabSize;
+	private final ByteBuffer[] slabs;
+	// Slab currently being appended to and the offset of its free space
+	private int activeSlab = 0;
+	private int writeOffset = 0;
+	
+	// Open addressing index with linear probing. An address of 0 marks a free
+	// slot, otherwise it is ((slab + 1) << 32) | offset of the record.
+	private int[] hashes;
+	private long[] addresses;
+	private int size = 0;
+	private long filledBytes = 0;
+	
+	/**
+	 * @param maxBytes the off-heap memory to use for keys and values
+	 * @param slabSize the size of each direct buffer; a record larger than this is never cached
+	 */
+	public OffHeapKVCache(long maxBytes, int slabSize) {
+		int slabCount = (int) Math.max(2, (maxBytes + slabSize - 1) / slabSize);
+		this.slabSize = slabSize;
+		this.slabs = new ByteBuffer[slabCount];
+		this.hashes = new int[MIN_INDEX_SIZE];
+		this.addresses = new long[MIN_INDEX_SIZE];
+	}
+	
+	/**
+	 * Uses 1 MB slabs.
+	 * @param maxBytes the off-heap memory to use for keys and values
+	 */
+	public OffHeapKVCache(long maxBytes) {
+		this(maxBytes, 1 << 20);
+	}
+
+	@Override
+	public synchronized boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		byte[] valueBytes = KVMessage.encodeBytes(value);
+		int hash = hash(keyBytes);
+		boolean replaced = remove(keyBytes, hash);
+		
+		int recordSize = RECORD_HEADER + keyBytes.length + valueBytes.length;
+		if (recordSize > slabSize) {
+			return replaced;
+		}
+		if (slabs[activeSlab] == null) {
+			slabs[activeSlab] = ByteBuffer.allocateDirect(slabSize);
+		}
+		if (writeOffset + recordSize > slabSize) {
+			advanceSlab();
+		}
+		
+		ByteBuffer slab = slabs[activeSlab];
+		slab.putInt(writeOffset, keyBytes.length);
+		slab.putInt(writeOffset + 4, valueBytes.length);
+		slab.position(writeOffset + RECORD_HEADER);
+		slab.put(keyBytes);
+		slab.put(valueBytes);
+		
+		insert(hash, ((long) (activeSlab + 1) << 32) | writeOffset);
+		writeOffset += recordSize;
+		filledBytes += recordSize;
+		return replaced;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized V get(K key) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		int slot = find(keyBytes, hash(keyBytes));
+		if (slot < 0) {
+			return null;
+		}
+		ByteBuffer record = recordAt(addresses[slot]);
+		int keyLength = record.getInt();
+		int valueLength = record.getInt();
+		record.position(record.position() + keyLength);
+		byte[] valueBytes = new byte[valueLength];
+		record.get(valueBytes);
+		return (V) KVMessage.decodeBytes(valueBytes);
+	}
+
+	@Override
+	public synchronized void del(K key) throws KVException {
+		byte[] keyBytes = KVMessage.encodeBytes(key);
+		remove(keyBytes, hash(keyBytes));
+	}
+	
+	/**
+	 * @return the number of entries currently cached
+	 */
+	public synchronized int filledEntries() {
+		return size;
+	}
+	
+	/**
+	 * @return the off-heap bytes used by the entries currently cached
+	 */
+	public synchronized long filledBytes() {
+		return filledBytes;
+	}
+	
+	/**
+	 * Moves appends to the next slab in the ring, evicting whatever it held.
+	 */
+	private void advanceSlab() {
+		activeSlab = (activeSlab + 1) % slabs.length;
+		writeOffset = 0;
+		if (slabs[activeSlab] == null) {
+			slabs[activeSlab] = ByteBuffer.allocateDirect(slabSize);
+		} else {
+			rebuildIndex(hashes.length, activeSlab + 1);
+		}
+	}
+	
+	/**
+	 * @return a view of the record at address, positioned at its header
+	 */
+	private ByteBuffer recordAt(long address) {
+		ByteBuffer record = slabs[(int) (address >>> 32) - 1].duplicate();
+		record.position((int) address);
+		return record;
+	}
+	
+	private int recordSize(long address) {
+		ByteBuffer record = recordAt(address);
+		return RECORD_HEADER + record.getInt() + record.getInt();
+	}
+	
+	private int find(byte[] keyBytes, int hash) {
+		int mask = addresses.length - 1;
+		for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && keyEquals(addresses[slot], keyBytes)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+	
+	private boolean keyEquals(long address, byte[] keyBytes) {
+		ByteBuffer record = recordAt(address);
+		if (record.getInt() != keyBytes.length) {
+			return false;
+		}
+		record.getInt();
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (record.get() != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void insert(int hash, long address) {
+		if ((size + 1) * 2 > addresses.length) {
+			rebuildIndex(addresses.length * 2, 0);
+		}
+		int mask = addresses.length - 1;
+		int slot = hash & mask;
+		while (addresses[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		hashes[slot] = hash;
+		addresses[slot] = address;
+		size++;
+	}
+	
+	/**
+	 * Removes the entry for the key, if any, closing the gap it leaves in 
+	 * its probe sequence by shifting later entries back.
+	 * @return whether an entry was removed
+	 */
+	private boolean remove(byte[] keyBytes, int hash) {
+		int slot = find(keyBytes, hash);
+		if (slot < 0) {
+			return false;
+		}
+		filledBytes -= recordSize(addresses[slot]);
+		size--;
+		
+		int mask = addresses.length - 1;
+		int free = slot;
+		for (int next = (free + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+			int home = hashes[next] & mask;
+			// Move the entry back if the free slot lies between its home slot and where it is now
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				hashes[free] = hashes[next];
+				addresses[free] = addresses[next];
+				free = next;
+			}
+		}
+		hashes[free] = 0;
+		addresses[free] = 0;
+		return true;
+	}
+	
+	/**
+	 * Rehashes every entry into a table of the given size, dropping the 
+	 * entries stored in the given slab (1-based, 0 to keep all).
+	 */
+	private void rebuildIndex(int tableSize, int droppedSlab) {
+		int[] oldHashes = hashes;
+		long[] oldAddresses = addresses;
+		hashes = new int[tableSize];
+		addresses = new long[tableSize];
+		size = 0;
+		int mask = tableSize - 1;
+		for (int i = 0; i < oldAddresses.length; i++) {
+			long address = oldAddresses[i];
+			if (address == 0) {
+				continue;
+			}
+			if ((int) (address >>> 32) == droppedSlab) {
+				filledBytes -= recordSize(address);
+				continue;
+			}
+			int slot = oldHashes[i] & mask;
+			while (addresses[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = oldHashes[i];
+			addresses[slot] = address;
+			size++;
+		}
+	}
+	
+	private static int hash(byte[] bytes) {
+		int h = Arrays.hashCode(bytes);
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * Task queue with priority lanes for the ThreadPool
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded blocking queue of tasks split into priority lanes. Takers always
+ * get the oldest task of the most urgent non-empty lane, so tasks in lane 0
+ * never wait behind tasks in later lanes. Tasks that do not implement
+ * ThreadPool.Prioritized go in ThreadPool.LANE_NORMAL.
+ */
+class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	private final List<ArrayDeque<Runnable>> lanes;
+	private final int capacity;
+	private int count = 0;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * @param laneCount number of lanes
+	 * @param capacity most tasks the queue holds across all lanes
+	 */
+	PriorityLaneQueue(int laneCount, int capacity) {
+		lanes = new ArrayList<ArrayDeque<Runnable>>(laneCount);
+		for (int i = 0; i < laneCount; i++) {
+			lanes.add(new ArrayDeque<Runnable>());
+		}
+		this.capacity = capacity;
+	}
+
+	private int laneOf(Runnable task) {
+		int lane = task instanceof ThreadPool.Prioritized ? ((ThreadPool.Prioritized) task).getLane() : ThreadPool.LANE_NORMAL;
+		return Math.max(0, Math.min(lanes.size() - 1, lane));
+	}
+
+	private void enqueue(Runnable task) {
+		lanes.get(laneOf(task)).addLast(task);
+		count++;
+		notEmpty.signal();
+	}
+
+	private Runnable dequeue() {
+		for (ArrayDeque<Runnable> lane : lanes) {
+			Runnable task = lane.pollFirst();
+			if (task != null) {
+				count--;
+				notFull.signal();
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a task, making room when the queue is full by dropping the oldest
+	 * task of the least urgent non-empty lane. A queued task is only dropped
+	 * for one at least as urgent; otherwise the new task is refused, so a 
+	 * backlog of urgent tasks is never displaced by less urgent ones.
+	 * @param task task to add
+	 * @return null if there was room, the dropped task, or the new task
+	 * itself if it was refused
+	 */
+	Runnable offerDisplacing(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			if (count < capacity) {
+				enqueue(task);
+				return null;
+			}
+			for (int i = lanes.size() - 1; i >= laneOf(task); i--) {
+				Runnable dropped = lanes.get(i).pollFirst();
+				if (dropped != null) {
+					lanes.get(laneOf(task)).addLast(task);
+					return dropped;
+				}
+			}
+			return task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param lane lane to count
+	 * @return number of tasks waiting in the lane
+	 */
+	int size(int lane) {
+		lock.lock();
+		try {
+			return lanes.get(lane).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		lock.lock();
+		try {
+			if (count >= capacity) {
+				return false;
+			}
+			enqueue(task);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Runnable task) throws InterruptedException {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		lock.lockInterruptibly();
+		try {
+			while (count >= capacity) {
+				notFull.await();
+			}
+			enqueue(task);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count >= capacity) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			enqueue(task);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			for (ArrayDeque<Runnable> lane : lanes) {
+				if (!lane.isEmpty()) {
+					return lane.peekFirst();
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		lock.lock();
+		try {
+			for (ArrayDeque<Runnable> lane : lanes) {
+				if (lane.remove(o)) {
+					count--;
+					notFull.signal();
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		lock.lock();
+		try {
+			int drained = 0;
+			Runnable task;
+			while (drained < maxElements && (task = dequeue()) != null) {
+				c.add(task);
+				drained++;
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Iterates over a snapshot, most urgent lane first.
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		lock.lock();
+		try {
+			ArrayList<Runnable> snapshot = new ArrayList<Runnable>(count);
+			for (ArrayDeque<Runnable> lane : lanes) {
+				snapshot.addAll(lane);
+			}
+			return snapshot.iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/**
+ * Sorted table file of the LSM-tree store
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An immutable sorted table of serialized keys and values written by 
+ * LSMStore. The file holds the records in key order, followed by a sparse 
+ * index (the key and offset of every INDEX_INTERVAL-th record), a Bloom 
+ * filter over all keys and a fixed size footer. The index and filter are 
+ * kept in memory, so a lookup that misses the filter costs no IO and a hit 
+ * costs one read of at most INDEX_INTERVAL records.
+ * 
+ * A deleted key is stored with a zero-length value (a tombstone); real 
+ * serialized values are never empty.
+ */
+class SSTable {
+	static final String SUFFIX = ".sst";
+	static final byte[] TOMBSTONE = new byte[0];
+	static final int INDEX_INTERVAL = 16;
+	
+	private static final int MAGIC = 0x4c534d31;
+	// index offset, bloom offset, first covered id, entry count, magic
+	private static final int FOOTER = 8 + 8 + 8 + 4 + 4;
+	private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+	
+	/**
+	 * Orders keys as unsigned byte strings.
+	 */
+	static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			int length = Math.min(a.length, b.length);
+			for (int i = 0; i < length; i++) {
+				int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return a.length - b.length;
+		}
+	};
+	
+	final long id;
+	// This table replaces the tables with ids in [coveredFrom, id) that it was compacted from
+	final long coveredFrom;
+	final int entryCount;
+	private final File file;
+	private final FileChannel channel;
+	private final byte[][] indexKeys;
+	private final long[] indexOffsets;
+	private final long dataEnd;
+	private final BloomFilter bloom;
+	
+	private SSTable(File file, long id) throws IOException {
+		this.file = file;
+		this.id = id;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		
+		long size = channel.size();
+		if (size < FOOTER) {
+			channel.close();
+			throw new IOException("Truncated table " + file);
+		}
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+		readFully(footer, size - FOOTER);
+		footer.flip();
+		long indexOffset = footer.getLong();
+		long bloomOffset = footer.getLong();
+		coveredFrom = footer.getLong();
+		entryCount = footer.getInt();
+		if (footer.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException("Corrupt table " + file);
+		}
+		dataEnd = indexOffset;
+		
+		ByteBuffer meta = ByteBuffer.allocate((int) (size - FOOTER - indexOffset));
+		readFully(meta, indexOffset);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta.array()));
+		int indexCount = in.readInt();
+		indexKeys = new byte[indexCount][];
+		indexOffsets = new long[indexCount];
+		for (int i = 0; i < indexCount; i++) {
+			indexKeys[i] = new byte[in.readInt()];
+			in.readFully(indexKeys[i]);
+			indexOffsets[i] = in.readLong();
+		}
+		in.skipBytes((int) (bloomOffset - indexOffset) - (meta.capacity() - in.available()));
+		bloom = BloomFilter.readFrom(in);
+	}
+	
+	/**
+	 * Opens an existing table file.
+	 */
+	static SSTable open(File file, long id) throws IOException {
+		return new SSTable(file, id);
+	}
+	
+	/**
+	 * Writes the entries, which must be in KEY_ORDER, to a new table. The 
+	 * file is written under a temporary name, forced to disk and then renamed, 
+	 * so a crash never leaves a partial table behind.
+	 * @param coveredFrom first id of the tables this one replaces, or id itself
+	 * @param expectedEntries used to size the Bloom filter
+	 */
+	static SSTable write(File directory, long id, long coveredFrom, Iterator<Map.Entry<byte[], byte[]>> entries, int expectedEntries) throws IOException {
+		File file = new File(directory, id + SUFFIX);
+		File temp = new File(directory, id + SUFFIX + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(temp);
+		CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+		DataOutputStream out = new DataOutputStream(counter);
+		
+		BloomFilter bloom = new BloomFilter(expectedEntries, BLOOM_FALSE_POSITIVE_RATE);
+		ArrayList<byte[]> indexKeys = new ArrayList<byte[]>();
+		ArrayList<Long> indexOffsets = new ArrayList<Long>();
+		int count = 0;
+		try {
+			while (entries.hasNext()) {
+				Map.Entry<byte[], byte[]> entry = entries.next();
+				byte[] key = entry.getKey();
+				byte[] value = entry.getValue();
+				if (count % INDEX_INTERVAL == 0) {
+					indexKeys.add(key);
+					indexOffsets.add(counter.written);
+				}
+				bloom.add(key);
+				out.writeInt(key.length);
+				out.writeInt(value.length);
+				out.write(key);
+				out.write(value);
+				count++;
+			}
+			
+			long indexOffset = counter.written;
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeInt(indexKeys.get(i).length);
+				out.write(indexKeys.get(i));
+				out.writeLong(indexOffsets.get(i));
+			}
+			long bloomOffset = counter.written;
+			bloom.writeTo(out);
+			
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(coveredFrom);
+			out.writeInt(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot rename " + temp);
+		}
+		return new SSTable(file, id);
+	}
+	
+	/**
+	 * @return the value bytes stored for the key, TOMBSTONE if it was 
+	 * deleted, or null if this table does not mention the key
+	 */
+	byte[] get(byte[] key) throws IOException {
+		if (indexKeys.length == 0 || !bloom.mightContain(key)) {
+			return null;
+		}
+		// Find the last index entry that is not greater than the key
+		int low = 0;
+		int high = indexKeys.length - 1;
+		int block = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (KEY_ORDER.compare(indexKeys[mid], key) <= 0) {
+				block = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (block < 0) {
+			return null;
+		}
+		
+		long start = indexOffsets[block];
+		long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+		ByteBuffer records = ByteBuffer.allocate((int) (end - start));
+		readFully(records, start);
+		records.flip();
+		while (records.hasRemaining()) {
+			byte[] recordKey = new byte[records.getInt()];
+			int valueLength = records.getInt();
+			records.get(recordKey);
+			int cmp = KEY_ORDER.compare(recordKey, key);
+			if (cmp == 0) {
+				if (valueLength == 0) {
+					return TOMBSTONE;
+				}
+				byte[] value = new byte[valueLength];
+				records.get(value);
+				return value;
+			}
+			if (cmp > 0) {
+				return null;
+			}
+			records.position(records.position() + valueLength);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the size of the table file in bytes
+	 */
+	long size() throws IOException {
+		return channel.size();
+	}
+	
+	/**
+	 * @return a reader that returns the records of this table in key order
+	 */
+	Scanner scan() throws IOException {
+		return new Scanner();
+	}
+	
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	void delete() {
+		close();
+		file.delete();
+	}
+	
+	/**
+	 * Sequential reader over the records of the table.
+	 */
+	class Scanner {
+		private final DataInputStream in;
+		private long position = 0;
+		byte[] key;
+		byte[] value;
+		
+		Scanner() throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+		
+		/**
+		 * Advances to the next record.
+		 * @return false once every record has been read
+		 */
+		boolean next() throws IOException {
+			if (position >= dataEnd) {
+				in.close();
+				return false;
+			}
+			try {
+				key = new byte[in.readInt()];
+				value = new byte[in.readInt()];
+				in.readFully(key);
+				in.readFully(value);
+			} catch (EOFException e) {
+				in.close();
+				throw new IOException("Truncated table " + file);
+			}
+			position += 8 + key.length + value.length;
+			return true;
+		}
+		
+		SSTable table() {
+			return SSTable.this;
+		}
+		
+		void close() throws IOException {
+			in.close();
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of table " + file);
+			}
+			position += read;
+		}
+	}
+	
+	/**
+	 * Tracks the write offset while the table is streamed out.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		long written = 0;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		public void write(int b) throws IOException {
+			out.write(b);
+			written++;
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			written += len;
+		}
+	}
+}
@@ -52,6 +52,18 @@ public class Server {
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
 		NetworkHandler handler = new KVClientHandler<String, String>(null, tpcMaster);
 		server.addHandler(handler);
+		// -Dmaster.eventLoops=<n> serves clients from n event loops, 
+		// 0 for one per processor; -Dmaster.workers sizes their pool
+		String eventLoops = System.getProperty("master.eventLoops");
+		if (eventLoops != null) {
+			ThreadPool workers = new ThreadPool(Integer.getInteger("master.workers", 16));
+			int loops = Integer.parseInt(eventLoops);
+			if (loops > 0) {
+				server.useEventLoops(loops, workers);
+			} else {
+				server.useEventLoops(workers);
+			}
+		}
 		server.connect();
 		System.out.println("Starting Master");
 		server.run();		
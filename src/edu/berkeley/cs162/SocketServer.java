@@ -30,13 +30,25 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** 
  * This is an generic class that should handle all TCP network connections 
  * arriving on a given unique (host, port) tuple. Ensure that this class 
  * remains generic by providing the connection handling logic in a NetworkHandler
+ * 
+ * By default every connection is handed to the NetworkHandler, which holds a 
+ * thread for the whole request. With useEventLoops() the connections are 
+ * instead served by a few Selector threads that read and write without 
+ * blocking, and only decoded requests reach the handler, as a MessageHandler, 
+ * on a worker pool. Every loop also accepts connections, so a reconnect storm 
+ * is accepted by all of them at once rather than by a single accept thread.
  */
 public class SocketServer {
 	String hostname;
@@ -44,6 +56,85 @@ public class SocketServer {
 	NetworkHandler handler;
 	ServerSocket server;
 	
+	// Pending connections the OS queues for us; large enough to absorb a 
+	// reconnect storm while the loops catch up
+	private static final int ACCEPT_BACKLOG = 1024;
+	
+	private int eventLoopCount = 0;
+	private ThreadPool workers = null;
+	private ServerSocketChannel serverChannel = null;
+	private volatile EventLoop[] eventLoops = null;
+	
+	/**
+	 * Counters of one event loop, as returned by getEventLoopStats().
+	 */
+	public static class LoopStats {
+		private final String name;
+		private final long accepted;
+		private final long connections;
+		private final int openConnections;
+		private final long requests;
+		private final long bytesRead;
+		private final long bytesWritten;
+		private final long wakeups;
+		
+		LoopStats(String name, long accepted, long connections, int openConnections, 
+				long requests, long bytesRead, long bytesWritten, long wakeups) {
+			this.name = name;
+			this.accepted = accepted;
+			this.connections = connections;
+			this.openConnections = openConnections;
+			this.requests = requests;
+			this.bytesRead = bytesRead;
+			this.bytesWritten = bytesWritten;
+			this.wakeups = wakeups;
+		}
+		
+		/** @return name of the loop's thread */
+		public String getName() {
+			return name;
+		}
+		
+		/** @return connections this loop accepted, wherever they were served */
+		public long getAccepted() {
+			return accepted;
+		}
+		
+		/** @return connections served by this loop, wherever they were accepted */
+		public long getConnections() {
+			return connections;
+		}
+		
+		/** @return connections currently open on this loop */
+		public int getOpenConnections() {
+			return openConnections;
+		}
+		
+		/** @return requests decoded and handed to the workers */
+		public long getRequests() {
+			return requests;
+		}
+		
+		public long getBytesRead() {
+			return bytesRead;
+		}
+		
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+		
+		/** @return times the loop's Selector returned */
+		public long getWakeups() {
+			return wakeups;
+		}
+		
+		public String toString() {
+			return name + ": accepted=" + accepted + " connections=" + connections 
+					+ " open=" + openConnections + " requests=" + requests 
+					+ " in=" + bytesRead + "B out=" + bytesWritten + "B wakeups=" + wakeups;
+		}
+	}
+	
 	public SocketServer(String hostname) {
 		this.hostname = hostname;
 		this.port = -1;
@@ -62,9 +153,46 @@ public class SocketServer {
 		return port;
 	}
 
+	/**
+	 * Serve connections from one event loop per processor rather than a 
+	 * thread per request. Must be called before connect(), and the handler 
+	 * must also be a MessageHandler.
+	 * @param workers pool the decoded requests are served on
+	 */
+	public void useEventLoops(ThreadPool workers) {
+		useEventLoops(Runtime.getRuntime().availableProcessors(), workers);
+	}
+
+	/**
+	 * Serve connections from event loops rather than a thread per request. 
+	 * Must be called before connect(), and the handler must also be a 
+	 * MessageHandler.
+	 * @param eventLoops number of Selector threads, each of which also 
+	 * accepts connections
+	 * @param workers pool the decoded requests are served on
+	 */
+	public void useEventLoops(int eventLoops, ThreadPool workers) {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException("Need at least one event loop");
+		}
+		this.eventLoopCount = eventLoops;
+		this.workers = workers;
+	}
+
 	public void connect() throws IOException {
 		// implement me
-		server = new ServerSocket(this.port);
+		if (eventLoopCount > 0) {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(this.port), ACCEPT_BACKLOG);
+			serverChannel.configureBlocking(false);
+			server = serverChannel.socket();
+		} else {
+			// Accepted sockets then have channels, so that FramedConnection 
+			// can park idle connections without holding a thread
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(this.port));
+			server = channel.socket();
+		}
 	}
 	
 	/**
@@ -73,18 +201,89 @@ public class SocketServer {
 	 */
 	public void run() throws IOException {
 		// implement me
+		if (serverChannel != null) {
+			runEventLoops();
+			return;
+		}
 		while (true){
 			Socket clientSocket = server.accept();
 			this.handler.handle(clientSocket);
 		}
 	}
 	
+	/**
+	 * Runs the event loops, each accepting from the shared channel and 
+	 * handing connections round-robin to the group, until they are closed.
+	 */
+	private void runEventLoops() throws IOException {
+		if (!(handler instanceof MessageHandler)) {
+			throw new IllegalStateException("Event loops need a handler that implements MessageHandler");
+		}
+		// SO_REUSEPORT would give each loop its own accept queue, but Java 8 
+		// cannot set it; the loops share one channel and a round-robin instead
+		EventLoop[] loops = new EventLoop[eventLoopCount];
+		AtomicInteger nextLoop = new AtomicInteger();
+		try {
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop((MessageHandler) handler, workers);
+			}
+			for (int i = 0; i < loops.length; i++) {
+				loops[i].listen(serverChannel, loops, nextLoop);
+				loops[i].start("EventLoop-" + port + "-" + i);
+			}
+			eventLoops = loops;
+			for (EventLoop loop : loops) {
+				loop.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			for (EventLoop loop : loops) {
+				if (loop != null) {
+					loop.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return counters of each event loop, empty unless the server runs 
+	 * event loops
+	 */
+	public List<LoopStats> getEventLoopStats() {
+		List<LoopStats> stats = new ArrayList<LoopStats>();
+		EventLoop[] loops = eventLoops;
+		if (loops != null) {
+			for (EventLoop loop : loops) {
+				stats.add(loop.getStats());
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Stops listening. In event loop mode this also stops the loops and 
+	 * run() returns; otherwise the pending accept() fails and run() throws.
+	 * @throws IOException if the listening socket cannot be closed
+	 */
+	public void close() throws IOException {
+		EventLoop[] loops = eventLoops;
+		if (loops != null) {
+			for (EventLoop loop : loops) {
+				loop.close();
+			}
+		}
+		if (server != null) {
+			server.close();
+		}
+	}
+	
 	/** 
 	 * Add the network handler for the current socket server
 	 * @param handler is logic for servicing a network connection
 	 */
 	public void addHandler(NetworkHandler handler) {
 		// implement me
-		this.handler = (TPCMasterHandler)handler;
+		this.handler = handler;
 	}
 }
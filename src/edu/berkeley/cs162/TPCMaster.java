@@ -30,16 +30,13 @@ package edu.berkeley.cs162;
 
 import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 import sun.misc.Lock;
 
@@ -86,8 +83,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 					SlaveInfo slave = null;
 					try {
 						slave = new SlaveInfo(msg.getMessage());
-						Socket slaveSocket = new Socket(slave.getHostName(), slave.getPort());
-						slave.setKvSocket(slaveSocket);
+						slavePool.warm(slave.getHostName(), slave.getPort());
 					} catch (KVException e) {
 					} catch (IOException e) {
 						e.printStackTrace();
@@ -156,9 +152,9 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		private String hostName = null;
 		// Port which SlaveServer is listening to
 		private int port = -1;
-		// Variables to be used to maintain connection with this SlaveServer
+		// Variables to be used to maintain connection with this SlaveServer;
+		// 2PC messages and reads share the master's pooled connections
 		private KVClient<K, V> kvClient = null;
-		private Socket kvSocket = null;
 
 		/**
 		 *
@@ -171,10 +167,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			hostName = slaveInfo.substring(slaveInfo.indexOf('@') + 1, slaveInfo.indexOf(':'));
 			port = Integer.valueOf(slaveInfo.substring(slaveInfo.indexOf(':') + 1));
 
-			//kvClient = new KVClient(hostName, port);
-
-			//how to initialize kvSocket?
-			//We don't need to, just use the setKvSocket method
+			kvClient = new KVClient<K, V>(hostName, port, slavePool);
 		}
 
 		public long getSlaveID() {
@@ -189,12 +182,15 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			return kvClient;
 		}
 
-		public Socket getKvSocket() {
-			return kvSocket;
-		}
-
-		public void setKvSocket(Socket kvSocket) {
-			this.kvSocket = kvSocket;
+		/**
+		 * Sends a 2PC message over a pooled connection to this SlaveServer.
+		 * @param message the message
+		 * @return the SlaveServer's response, once it arrives
+		 * @throws IOException if the SlaveServer cannot be reached
+		 * @throws KVException if the message cannot be encoded
+		 */
+		public CompletableFuture<KVMessage> sendAsync(KVMessage message) throws IOException, KVException {
+			return slavePool.sendAsync(hostName, port, message);
 		}
 
 		public int getPort() {
@@ -203,6 +199,18 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 	}
 	// Timeout value used during 2PC operations
 	private static final int TIMEOUT_MILLISECONDS = 5000;
+	// First wait before sending a decision again to replicas that did not 
+	// answer; doubles up to TIMEOUT_MILLISECONDS
+	private static final long RETRY_MILLISECONDS = 100;
+	// Connections to the SlaveServers, kept open between operations. One per 
+	// slave by default, since a SlaveServer serves its master from a single 
+	// handler thread; more only help slaves with a larger handler pool or 
+	// event loops
+	private final ConnectionPool slavePool = new ConnectionPool(
+			Integer.getInteger("master.slaveMinConnections", 1),
+			Integer.getInteger("master.slaveMaxConnections", 1),
+			ConnectionPool.DEFAULT_IDLE_MILLIS,
+			Boolean.getBoolean("master.binaryCodec"));
 	// Cache stored in the Master/Coordinator Server
 	private KVCache<K, V> masterCache = new KVCache<K, V>(1000);
 	// Registration server that uses TPCRegistrationHandler
@@ -379,91 +387,22 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		SlaveInfo slave1 = findSuccessor(slave);
 		//Socket secondSocket = slave1.getKvSocket();
 
-		//THE FOLLOWING HUGE CHUNK OF CODE IS TO SEND A PREPARE MESSAGE TO SLAVE SERVERS
+		//THE FOLLOWING CODE SENDS A PREPARE MESSAGE TO SLAVE SERVERS
 
 		//req = a new TPCMessage with the msgType of msg and applicable fields;
 		KVMessage req = new KVMessage(msg.getMsgType(), msg.getKey(), msg.getValue());
 		req.setTpcOpId(tpcOpId.toString());
 		getNextTpcOpId();
 
-		//xml is the xml version of request
-		String xml = null;
-
-		//create the sockets to establish connection
-		Socket firstSocket = null;
-		Socket secondSocket = null;
-		try {
-			firstSocket = new Socket(slave.getHostName(), slave.getPort());
-			secondSocket = new Socket(slave1.getHostName(), slave1.getPort());
-		} catch (UnknownHostException e1) {
-			System.out.println("exception line 400");
-			e1.printStackTrace();
-		} catch (IOException e1) {
-			System.out.println("exception line 403");
-			e1.printStackTrace();
-		}
-
-		//create the filteroutputstreams
-		FilterOutputStream fos = null;
-		FilterOutputStream fos1 = null;
-		try {
-			fos = new FilterOutputStream(firstSocket.getOutputStream());
-			fos1 = new FilterOutputStream(secondSocket.getOutputStream());
-			fos.flush();
-			fos1.flush();
-		} catch (IOException e) {
-		}
-		try {
-			xml = req.toXML();
-			//System.out.println("XML RESPONSE: " + xml);
-		} catch (KVException e1) {
-		}
-		byte[] xmlBytes = xml.getBytes();
-		try {
-			fos.write(xmlBytes);
-			fos.flush();
-			fos1.write(xmlBytes);
-			fos1.flush();
-		} catch (IOException e) {
-		}
-
-		//END OF THE PREPARE MESSAGE PHASE
-
-		//START OF THE RECEIVING MESSAGE FROM SLAVES PHASE
-
-		KVMessage decision = null;
-
-		//set timeout for firstSocket, secondSocket;
-		try {
-			firstSocket.setSoTimeout(5000);
-			secondSocket.setSoTimeout(5000);
-		} catch (SocketException e) {
-		}
-
-		/*
-		 * try to receive TPCMessages from firstSocket and secondSocket:
-		 * if either socket times out: stream abort message to both
-		 * firstSocket and secondSocket; return false; if both sockets
-		 * send ready messages: stream ready message to both firstSocket
-		 * and secondSocket;
-		 */
-		InputStream firstMsg = null;
-		InputStream secondMsg = null;
-
-		try {
-			firstMsg = firstSocket.getInputStream();
-			secondMsg = secondSocket.getInputStream();
-		} catch (IOException e) {
-			System.out.println("IOException line 335");
-			System.out.println(e.getMessage());
-			e.printStackTrace();
-		}
-
+		//send the prepare to both replicas at once over their keep-alive 
+		//connections, then wait for both votes
 		KVMessage inMsg1, inMsg2;
 		try {
-			inMsg1 = new KVMessage(firstMsg);
-			inMsg2 = new KVMessage(secondMsg);
-		} catch (SocketTimeoutException e) {
+			CompletableFuture<KVMessage> firstVote = slave.sendAsync(req);
+			CompletableFuture<KVMessage> secondVote = slave1.sendAsync(req);
+			inMsg1 = KVConnection.await(firstVote, TIMEOUT_MILLISECONDS);
+			inMsg2 = KVConnection.await(secondVote, TIMEOUT_MILLISECONDS);
+		} catch (IOException e) {
 
 			//SEND BACK THE ERROR KVMessage THIS IS NOT FINISHED
 			KVMessage error = new KVMessage("resp", "Timeout Error: SlaveServer <slaveID> has timed out during the first phase of 2PC");
@@ -471,7 +410,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			//then unlock; you don't need these locks anymore
 			writeLock.unlock();
 			readLock.unlock();
-			sendAbortOrCommit(firstSocket, secondSocket, slave, slave1, "abort");
+			sendAbortOrCommit(slave, slave1, "abort");
 
 			return false;
 			}
@@ -485,7 +424,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			writeLock.unlock();
 			
 			//send abort messages
-			sendAbortOrCommit(firstSocket, secondSocket, slave, slave1, "abort");
+			sendAbortOrCommit(slave, slave1, "abort");
 
 			//then return false
 			return false;
@@ -493,7 +432,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		} else {
 			
 			//send commit messages
-			sendAbortOrCommit(firstSocket, secondSocket, slave, slave1, "commit");
+			sendAbortOrCommit(slave, slave1, "commit");
 
 		}
 
@@ -578,99 +517,75 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 	}
 
 
-	private void sendAbortOrCommit(Socket firstSocket, Socket secondSocket, SlaveInfo slave, SlaveInfo slave1, String abOrComm){
+	/**
+	 * Sends the decision to both replicas, again and again until each has 
+	 * acknowledged it.
+	 */
+	private void sendAbortOrCommit(SlaveInfo slave, SlaveInfo slave1, String abOrComm){
 		KVMessage decision = new KVMessage(abOrComm);
-		try {
-			firstSocket.close();
-			secondSocket.close();
-		} catch (IOException e1) {
-		}
-		try {
-			firstSocket = new Socket(slave.getHostName(), slave.getPort());
-			secondSocket = new Socket(slave1.getHostName(), slave1.getPort());
-		} catch (UnknownHostException e1) {
-		} catch (IOException e1) {
+		boolean firstAcked = false;
+		boolean secondAcked = false;
+		long backoff = RETRY_MILLISECONDS;
+		boolean interrupted = false;
+		while (!(firstAcked && secondAcked)) {
+			CompletableFuture<KVMessage> firstAck = firstAcked ? null : sendDecision(slave, decision);
+			CompletableFuture<KVMessage> secondAck = secondAcked ? null : sendDecision(slave1, decision);
+			boolean acked = false;
+			if (!firstAcked) {
+				firstAcked = isAck(firstAck);
+				acked |= firstAcked;
+			}
+			if (!secondAcked) {
+				secondAcked = isAck(secondAck);
+				acked |= secondAcked;
+			}
+			if (!(firstAcked && secondAcked) && !acked) {
+				// No replica acknowledged, for instance because one is down and
+				// refuses connections at once, or answers "Overloaded"; wait 
+				// rather than spin
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					// The decision must still be delivered
+					interrupted = true;
+				}
+				backoff = Math.min(backoff * 2, TIMEOUT_MILLISECONDS);
+			}
 		}
-		FilterOutputStream fos = null;
-		FilterOutputStream fos1 = null;
-		try {
-			fos = new FilterOutputStream(firstSocket.getOutputStream());
-			fos1 = new FilterOutputStream(secondSocket.getOutputStream());
-			fos.flush();
-			fos1.flush();
-		} catch (IOException e1) {
+		if (interrupted) {
+			Thread.currentThread().interrupt();
 		}
-		String xml = null;
+	}
+
+	/**
+	 * @return the pending response, or null if the decision could not be sent
+	 */
+	private CompletableFuture<KVMessage> sendDecision(SlaveInfo slave, KVMessage decision) {
 		try {
-			xml = decision.toXML();
-		} catch (KVException e1) {
+			return slave.sendAsync(decision);
+		} catch (IOException e) {
+			return null;
+		} catch (KVException e) {
 			System.out.println("KVexception in sendAbortOrCommit");
-			System.out.println(e1.getMessage());
-		}
-		byte[] xmlBytes1 = xml.getBytes();
-		try {
-			fos.write(xmlBytes1);
-			fos.flush();
-			fos1.write(xmlBytes1);
-			fos1.flush();
-		} catch (IOException e1) {
+			System.out.println(e.getMessage());
+			return null;
 		}
+	}
 
-		boolean ackReceived = false;
-		while (!ackReceived) {
-			try {
-				//Wait for an ACK
-				firstSocket.setSoTimeout(5000);
-				secondSocket.setSoTimeout(5000);
-				//ACK received (hopefully)
-				KVMessage respMessage = null;
-				KVMessage respMessage1 = null;
-				InputStream is = null, is1 = null;
-
-				try {
-					is = firstSocket.getInputStream();
-					is1 = secondSocket.getInputStream();
-				} catch (IOException e1) {
-				}
-				try {
-					respMessage = new KVMessage(is);
-					respMessage1 = new KVMessage(is1);
-				}
-				catch (KVException e) {
-				}
-				catch (SocketTimeoutException e1) {
-					//ACK not received, try sending the message again
-					try {
-						fos = new FilterOutputStream(firstSocket.getOutputStream());
-						fos1 = new FilterOutputStream(secondSocket.getOutputStream());
-					} catch (IOException e3) {
-					}
-					try {
-						fos.flush();
-						fos1.flush();
-					} catch (IOException e3) {
-					}
-
-					try {
-						xml = decision.toXML();
-						//System.out.println("XML RESPONSE: " + xml);
-					} catch (KVException e2) {
-					}
-					byte[] xmlBytes = xml.getBytes();
-					try {
-						fos.write(xmlBytes);
-						fos.flush();
-						fos1.write(xmlBytes);
-						fos1.flush();
-					} catch (IOException e2) {
-					}
-				}
-				if (respMessage.getMsgType().equals("ack") && respMessage1.getMsgType().equals("ack")) {
-					ackReceived = true;
-				}
-			} catch (SocketException e1) {
-			}
+	/**
+	 * @return true if the replica acknowledged the decision
+	 */
+	private boolean isAck(CompletableFuture<KVMessage> response) {
+		if (response == null) {
+			return false;
+		}
+		try {
+			return KVConnection.await(response, TIMEOUT_MILLISECONDS).getMsgType().equals("ack");
+		} catch (IOException e) {
+			//ACK not received, the caller sends the message again
+			return false;
+		} catch (KVException e) {
+			return false;
 		}
-
 	}
 }
@@ -29,7 +29,6 @@
  */
 package edu.berkeley.cs162;
 
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
@@ -42,7 +41,7 @@ import java.util.Hashtable;
  * Coordinator Server
  *
  */
-public class TPCMasterHandler<K extends Serializable, V extends Serializable> implements NetworkHandler {
+public class TPCMasterHandler<K extends Serializable, V extends Serializable> implements NetworkHandler, MessageHandler {
 	private KeyServer<K, V> keyserver = null;
 	private ThreadPool threadpool = null;
 	private TPCLog<K, V> tpcLog = null;
@@ -62,199 +61,119 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 		opIdToOperation = new Hashtable<String, KVMessage>();
 	}
 
+	/**
+	 * @param keyserver
+	 * @param threadpool pool to run requests on, for instance one with a 
+	 * bounded queue so that excess requests are answered "Overloaded", or a 
+	 * THREAD_PER_TASK pool that gives every connection its own virtual thread; the 
+	 * master retries decisions until they are acknowledged. With a 
+	 * PRIORITY_LANES pool, commit and abort run before prepares, and prepares 
+	 * before reads.
+	 */
+	public TPCMasterHandler(KeyServer<K, V> keyserver, ThreadPool threadpool) {
+		this.keyserver = keyserver;
+		this.threadpool = threadpool;
+		opIdToOperation = new Hashtable<String, KVMessage>();
+	}
+
 	@Override
 	public void handle(Socket client) throws IOException {
 		// implement me
 		System.out.println("handle called");
-		ConnectionHandler newTask = new ConnectionHandler(client);
+		// The request is read on the pool's thread once it arrives, so a 
+		// slow or idle master connection holds up neither the acceptor nor 
+		// a worker
+		FramedConnection newTask = new FramedConnection(client, this, threadpool);
 		System.out.println("Adding to threadpool");
-		if(newTask.failed == false){
-			try {
-				threadpool.addToQueue(newTask);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		try {
+			newTask.start();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 	}
 	
-	private class ConnectionHandler implements Runnable {
-		
-		Socket s1;
-		KVMessage message;  //Message sent by the master
-		public boolean failed = false; /*If we fail to get the message from the master, 
-		 								 we do not add it to the thread pool		*/
+	/**
+	 * Serves one request from the master: a read, a prepare (put or del), a 
+	 * commit or abort decision, or a ping of an idle connection.
+	 * @param message the decoded request
+	 * @return the response, or null for an unknown request type
+	 */
+	@SuppressWarnings("unchecked")
+	public KVMessage process(KVMessage message) {
+		KVMessage response = null;
 		
-		public ConnectionHandler(Socket client) throws IOException{
-			this.s1 = client;
-			KVMessage response = new KVMessage("resp", null, null);; //If there's an error getting the message, send this back
+		if(message.getMsgType().equals("getreq")) {
+			V value = null;
 			try {
-				message = new KVMessage(s1.getInputStream());
+				value = (V)KVMessage.decodeObject((String)keyserver.get((K)message.getKey()));
+				response = new KVMessage("resp" , message.getKey(), value, null, "Success");
 			} catch (KVException e) {
-				FilterOutputStream fos = new FilterOutputStream(s1.getOutputStream());
-				fos.flush();
-				response.setMessage(e.getMsg().getMessage());
-				String xml = null;
-				try {
-					xml = response.toXML();
-				} catch (KVException e1) {
-					e1.printStackTrace();
-				}
-				byte[] xmlBytes = xml.getBytes();
-				fos.write(xmlBytes);
-				fos.flush();
-				s1.close();
-				failed = true;
+				response = new KVMessage("resp", null, 
+						null, null, e.getMsg().getMessage());	
 			}
-		}
+		}//End of GET
+		
+		//Is part of the "prepare" message from coordinator in the 2PC Diagram
+		if(message.getMsgType().equals("putreq") || message.getMsgType().equals("delreq")){
+			opIdToOperation.put(message.getTpcOpId(), message);
+			response = new KVMessage("Ready");
+			tpcLog.appendAndFlush(response);
+			response.setTpcOpId(message.getTpcOpId());
+		}//End of PUT and DEL
 		
-		public void run(){
-			System.out.println("Calling Run");
-			FilterOutputStream fos = null;
+		//Is part of the "Decision" message from coordinator in the 2PC diagram
+		//Send an ACK back to the coordinator
+		if(message.getMsgType().equals("commit")){
+			//Perform the operation
+		    tpcLog.appendAndFlush(message);
+		    response = new KVMessage("ack");
+		    response.setTpcOpId(message.getTpcOpId());
+		    KVMessage commitOp = opIdToOperation.get(message.getTpcOpId());	
+		    if(commitOp.getMsgType().equals("putreq")){
 			try {
-				fos = new FilterOutputStream(s1.getOutputStream());
-				fos.flush();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			    keyserver.put((K)commitOp.getKey(),(V)commitOp.getValue());	
+			} catch (KVException e) {
+			    response = new KVMessage("resp", null, 
+						     null, null, e.getMsg().getMessage());		
+			}
+		    } else if(commitOp.getMsgType().equals("delreq")){
+			try {
+			    keyserver.del((K)commitOp.getKey());
+			} catch (KVException e) {
+			    response = new KVMessage("resp", null, 
+						     null, null, e.getMsg().getMessage());		
 			}
-			
-			KVMessage response = null;
-			String xml;
-			
-			
-			//TODO: Need to send back a "Response" (READY/ABORT) message
-			if(message.getMsgType().equals("getreq")) {
-				V value = null;
-				try {
-					value = (V)KVMessage.decodeObject((String)keyserver.get((K)message.getKey()));
-					response = new KVMessage("resp" , message.getKey(), value, null, "Success");
-				} catch (KVException e) {
-					response = new KVMessage("resp", null, 
-							null, null, e.getMsg().getMessage());	
-				} finally {
-					try {
-						xml = response.toXML();
-						byte[] xmlBytes = xml.getBytes();
-						fos.write(xmlBytes);
-						fos.flush();
-						s1.shutdownOutput();
-						s1.close();
-					} catch (IOException e){
-						e.printStackTrace();
-					} catch (KVException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				}
-			}//End of GET
-			
-			//Is part of the "prepare" message from coordinator in the 2PC Diagram
-			//TODO: Need to send back a "Response" (READY/ABORT) message
-			if(message.getMsgType().equals("putreq")){
-				opIdToOperation.put(message.getTpcOpId(), message);
-				response = new KVMessage("Ready");
-				tpcLog.appendAndFlush(response);
-				response.setTpcOpId(message.getTpcOpId());
-				try {
-					xml = response.toXML();
-					byte[] xmlBytes = xml.getBytes();
-					fos.write(xmlBytes);
-					fos.flush();
-					s1.shutdownOutput();
-					s1.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (KVException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}//End of PUT
-			
-			//Is part of the "Prepare" message from coordinator in 2PC diagram
-			//TODO: Need to send back a "Response" (READY/ABORT) message
-			if(message.getMsgType().equals("delreq")){
-				opIdToOperation.put(message.getTpcOpId(), message);
-				response = new KVMessage("Ready");
-				tpcLog.appendAndFlush(response);
-				response.setTpcOpId(message.getTpcOpId());
-				try {
-					xml = response.toXML();
-					byte[] xmlBytes = xml.getBytes();
-					fos.write(xmlBytes);
-					fos.flush();
-					s1.shutdownOutput();
-					s1.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (KVException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}//End of DEL
-			
-			//Is part of the "Decision" message from coordinator in the 2PC diagram
-			//Send an ACK back to the coordinator
-			if(message.getMsgType().equals("commit")){
-				//Perform the operation
-			    tpcLog.appendAndFlush(message);
-			    response = new KVMessage("ack");
-			    response.setTpcOpId(message.getTpcOpId());
-			    KVMessage commitOp = opIdToOperation.get(message.getTpcOpId());	
-			    if(commitOp.getMsgType().equals("putreq")){
-				try {
-				    keyserver.put((K)commitOp.getKey(),(V)commitOp.getValue());	
-				} catch (KVException e) {
-				    response = new KVMessage("resp", null, 
-							     null, null, e.getMsg().getMessage());		
-				}
-			    } else if(commitOp.getMsgType().equals("delreq")){
-				try {
-				    keyserver.del((K)commitOp.getKey());
-				} catch (KVException e) {
-				    response = new KVMessage("resp", null, 
-							     null, null, e.getMsg().getMessage());		
-				}
-			    }
-				
-			    //Respond with ACK or KVException to the coordinator
-			    try {
-			    	xml = response.toXML();
-					byte[] xmlBytes = xml.getBytes();
-					fos.write(xmlBytes);
-					fos.flush();
-					s1.shutdownOutput();
-					s1.close();
-			    } catch (IOException e) {
-				e.printStackTrace();
-			    } catch (KVException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}//End Commit
-			
-			//Is part of the "Decision" message from coordinator in the 2PC diagram
-			//TODO: Send an ACK back to the coordinator
-			if(message.getMsgType().equals("abort")){
-			    tpcLog.appendAndFlush(message);
-			    //Respond with ACK to the coordinator
-			    response = new KVMessage("ack");
-			    response.setTpcOpId(message.getTpcOpId());
-			    try {
-			    	xml = response.toXML();
-				    byte[] xmlBytes = xml.getBytes();
-			    	fos.write(xmlBytes);
-			    	fos.flush();
-			    	s1.shutdownOutput();
-			    	s1.close();
-			    } catch (IOException e) {
-			    	e.printStackTrace();
-			    } catch (KVException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}//End ACK
-			
+		    }
+		}//End Commit
+		
+		//Is part of the "Decision" message from coordinator in the 2PC diagram
+		if(message.getMsgType().equals("abort")){
+		    tpcLog.appendAndFlush(message);
+		    //Respond with ACK to the coordinator
+		    response = new KVMessage("ack");
+		    response.setTpcOpId(message.getTpcOpId());
+		}//End ACK
+		
+		//Lets the master's connection pool check an idle connection
+		if(message.getMsgType().equals("pingreq")){
+			response = new KVMessage("resp", "Success");
+		}
+		
+		return response;
+	}
+
+	/**
+	 * Decisions go first so the master can release its locks, then 
+	 * prepares, then reads.
+	 */
+	public int getLane(KVMessage message) {
+		String type = message.getMsgType();
+		if (type.equals("commit") || type.equals("abort")) {
+			return ThreadPool.LANE_HIGH;
+		} else if (type.equals("getreq")) {
+			return ThreadPool.LANE_LOW;
 		}
+		return ThreadPool.LANE_NORMAL;
 	}
 
 	/**
@@ -29,43 +29,645 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.*;
+import java.lang.reflect.Method;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Pool of worker threads fed from a shared task queue. The queue is a 
+ * two-lock LinkedBlockingQueue, so adding a task never waits for a worker 
+ * that is taking one, and workers run their tasks without holding any lock, 
+ * so all of them can be busy at once.
+ * 
+ * The pool keeps at least its core size of workers. When a task is queued 
+ * while every worker is busy it starts another, up to the maximum size, and 
+ * workers beyond the core size exit after sitting idle for the keep-alive 
+ * time. shutdown() stops accepting tasks and lets the workers finish what 
+ * is queued; awaitTermination() waits for them to exit.
+ * 
+ * The queue can be bounded. What happens to a task that arrives when it is 
+ * full depends on the RejectionPolicy, and tasks that implement Rejectable 
+ * are told when they are turned away so they can answer their client. The 
+ * queue depth and rejection gauges let callers shed load before that point.
+ * 
+ * In WORK_STEALING mode each worker also has its own deque. Tasks submitted 
+ * by a worker of the pool (sub-tasks of a running task) go on that worker's 
+ * deque and are taken newest first by the same thread, so they stay on its 
+ * core and never touch the shared queue. Idle workers take from the shared 
+ * queue and then steal the oldest task of a randomly chosen worker.
+ * 
+ * In THREAD_PER_TASK mode there are no workers or queue: every task gets a 
+ * thread of its own, a virtual thread when the JVM has them (Java 21 and 
+ * later) and a platform thread otherwise. The capacity then bounds the 
+ * number of tasks in flight.
+ * 
+ * In PRIORITY_LANES mode the shared queue is split into lanes. Tasks that 
+ * implement Prioritized name their lane, and a worker always takes the 
+ * oldest task of the most urgent non-empty lane, so urgent tasks never wait 
+ * behind queued bulk work. DROP_OLDEST drops from the least urgent lane, 
+ * but only for a task at least as urgent; a less urgent task is rejected 
+ * instead.
+ */
 public class ThreadPool {
 	/**
-	 * Set of threads in the threadpool
+	 * How workers find their tasks.
 	 */
-	protected Thread threads[] = null;
-	protected LinkedList<Runnable> queueOfTasks = new LinkedList<Runnable>();
+	public enum Mode {
+		/** Every worker takes from the one shared queue. */
+		SHARED_QUEUE,
+		/** Workers have their own deques and steal from each other when idle. */
+		WORK_STEALING,
+		/** Every task runs on a new thread, virtual if available. */
+		THREAD_PER_TASK,
+		/** Like SHARED_QUEUE, but more urgent lanes are always served first. */
+		PRIORITY_LANES
+	}
+	
+	/** Most urgent lane, for example 2PC decisions. */
+	public static final int LANE_HIGH = 0;
+	/** Lane of tasks that do not say otherwise. */
+	public static final int LANE_NORMAL = 1;
+	/** Least urgent lane, for example reads that may take long. */
+	public static final int LANE_LOW = 2;
+	private static final int LANE_COUNT = 3;
+	
+	/**
+	 * A task that says which lane it belongs in when the pool runs in 
+	 * PRIORITY_LANES mode. Other modes ignore the lane.
+	 */
+	public interface Prioritized extends Runnable {
+		/**
+		 * @return LANE_HIGH, LANE_NORMAL or LANE_LOW; read when the task is queued
+		 */
+		public int getLane();
+	}
+	
+	/**
+	 * What addToQueue does when the queue is full.
+	 */
+	public enum RejectionPolicy {
+		/** Wait for space, pushing back on the caller (usually the acceptor). */
+		BLOCK,
+		/** Reject the new task immediately. */
+		FAIL_FAST,
+		/** Reject the oldest queued task to make room for the new one. */
+		DROP_OLDEST
+	}
+	
+	/**
+	 * A task that wants to know when the pool refuses or drops it, for 
+	 * instance to tell its client that the server is overloaded.
+	 */
+	public interface Rejectable extends Runnable {
+		/**
+		 * Called instead of run() when the task will never be executed. 
+		 * Runs on the thread that called addToQueue.
+		 */
+		public void reject();
+	}
+	
+	/**
+	 * Set of threads in the threadpool. Replaced, never modified, under 
+	 * workerLock so that stealing workers can scan it without locking.
+	 */
+	protected volatile WorkerThread threads[] = new WorkerThread[0];
+	protected BlockingQueue<Runnable> queueOfTasks = null;
+	
+	private final int coreSize;
+	private final int maxSize;
+	private final long keepAliveMillis;
+	private final int queueCapacity;
+	private final RejectionPolicy rejectionPolicy;
+	private final Mode mode;
+	// Guards changes to threads and is notified when the pool terminates
+	private final Object workerLock = new Object();
+	private volatile boolean shutdown = false;
+	// Idle work-stealing workers wait here until a task is submitted
+	private final Object idleLock = new Object();
+	private volatile int idleWorkers = 0;
+	// Longest a waiting worker sleeps before checking for shutdown or reaping
+	private static final long IDLE_WAIT_MILLIS = 100;
+	private static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+	// Limits tasks in flight in THREAD_PER_TASK mode, null if unbounded
+	private final Semaphore taskPermits;
+	private final AtomicInteger tasksInFlight = new AtomicInteger();
+	// Thread.startVirtualThread, looked up reflectively so older JVMs still run the pool
+	private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+	protected final AtomicInteger activeThreads = new AtomicInteger();
+	private final AtomicLong rejectedTasks = new AtomicLong();
 
 	/**
 	 * Initialize the number of threads required in the threadpool. 
+	 * The queue is unbounded.
 	 * 
 	 * @param size  How many threads in the thread pool.
 	 */
 	public ThreadPool(int size)
 	{
-		// implement me
-		threads = new Thread[size];
-		for(int i = 0; i < size; i++){
-			threads[i] = new WorkerThread(this);
-			threads[i].start();
+		this(size, Integer.MAX_VALUE, RejectionPolicy.BLOCK);
+	}
+	
+	/**
+	 * @param size How many threads in the thread pool.
+	 * @param queueCapacity How many tasks may wait for a thread.
+	 * @param rejectionPolicy What to do with tasks that arrive when the queue is full.
+	 */
+	public ThreadPool(int size, int queueCapacity, RejectionPolicy rejectionPolicy)
+	{
+		this(size, queueCapacity, rejectionPolicy, Mode.SHARED_QUEUE);
+	}
+	
+	/**
+	 * @param size How many threads in the thread pool.
+	 * @param queueCapacity How many tasks may wait in the shared queue. Tasks 
+	 * that workers submit to their own deques are not bounded, since a 
+	 * worker must never block or be refused by its own pool.
+	 * @param rejectionPolicy What to do with tasks that arrive when the queue is full.
+	 * @param mode Whether workers share one queue, steal work from each 
+	 * other, or are replaced by a thread per task. In THREAD_PER_TASK mode 
+	 * size is ignored and queueCapacity limits the tasks in flight; 
+	 * DROP_OLDEST acts like FAIL_FAST since running tasks cannot be dropped.
+	 */
+	public ThreadPool(int size, int queueCapacity, RejectionPolicy rejectionPolicy, Mode mode)
+	{
+		this(size, size, DEFAULT_KEEP_ALIVE_MILLIS, queueCapacity, rejectionPolicy, mode);
+	}
+	
+	/**
+	 * @param coreSize How many threads the pool starts with and keeps when idle.
+	 * @param maxSize How many threads the pool may grow to when tasks back up.
+	 * @param keepAliveMillis How long a thread beyond the core size may sit 
+	 * idle before it exits.
+	 * @param queueCapacity How many tasks may wait in the shared queue.
+	 * @param rejectionPolicy What to do with tasks that arrive when the queue is full.
+	 * @param mode Whether workers share one queue, steal work from each 
+	 * other, or are replaced by a thread per task (sizes are then ignored).
+	 */
+	public ThreadPool(int coreSize, int maxSize, long keepAliveMillis, int queueCapacity, 
+			RejectionPolicy rejectionPolicy, Mode mode)
+	{
+		if (mode != Mode.THREAD_PER_TASK && (coreSize < 0 || maxSize < Math.max(1, coreSize))) {
+			throw new IllegalArgumentException("Need 0 <= coreSize <= maxSize and maxSize >= 1");
+		}
+		this.coreSize = coreSize;
+		this.maxSize = maxSize;
+		this.keepAliveMillis = keepAliveMillis;
+		this.queueCapacity = queueCapacity;
+		this.rejectionPolicy = rejectionPolicy;
+		this.mode = mode;
+		if (mode == Mode.PRIORITY_LANES) {
+			queueOfTasks = new PriorityLaneQueue(LANE_COUNT, queueCapacity);
+		} else {
+			queueOfTasks = new LinkedBlockingQueue<Runnable>(queueCapacity);
+		}
+		taskPermits = queueCapacity == Integer.MAX_VALUE ? null : new Semaphore(queueCapacity);
+		if (mode != Mode.THREAD_PER_TASK) {
+			for(int i = 0; i < coreSize; i++){
+				addWorker();
+			}
 		}
 	}
 
 	/**
 	 * Add a job to the queue of tasks that has to be executed. As soon as a thread is available, 
 	 * it will retrieve tasks from this queue and start processing.
+	 * A worker of this pool that adds a task to a full BLOCK queue runs the 
+	 * task itself rather than wait on its own pool.
 	 * @param r job that has to be executed asynchronously
+	 * @return false if the queue was full or the pool shut down and the job was rejected
 	 * @throws InterruptedException 
 	 */
-	public void addToQueue(Runnable r) throws InterruptedException
+	public boolean addToQueue(Runnable r) throws InterruptedException
 	{
-		// implement me
-		synchronized(queueOfTasks){
-			queueOfTasks.add(r);
-			queueOfTasks.notify();
+		if (shutdown) {
+			reject(r);
+			return false;
+		}
+		if (mode == Mode.THREAD_PER_TASK) {
+			return startTask(r);
+		}
+		Thread current = Thread.currentThread();
+		boolean fromWorker = current instanceof WorkerThread && ((WorkerThread) current).myThreadPool == this;
+		if (fromWorker && mode == Mode.WORK_STEALING) {
+			((WorkerThread) current).localTasks.addLast(r);
+			wakeIdleWorker();
+			return true;
+		}
+		
+		boolean accepted = true;
+		switch (rejectionPolicy) {
+		case FAIL_FAST:
+			if (!queueOfTasks.offer(r)) {
+				growIfBusy();
+				reject(r);
+				accepted = false;
+			}
+			break;
+		case DROP_OLDEST:
+			if (mode == Mode.PRIORITY_LANES) {
+				// Never drops a queued task for a less urgent one; refuses the new task instead
+				Runnable dropped = ((PriorityLaneQueue) queueOfTasks).offerDisplacing(r);
+				if (dropped != null) {
+					reject(dropped);
+					accepted = dropped != r;
+				}
+				break;
+			}
+			while (!queueOfTasks.offer(r)) {
+				Runnable oldest = queueOfTasks.poll();
+				if (oldest != null) {
+					reject(oldest);
+				}
+			}
+			break;
+		default:
+			if (!queueOfTasks.offer(r)) {
+				growIfBusy();
+				if (fromWorker) {
+					// A worker waiting on its own full pool could deadlock it; run the task here instead
+					runTask(r);
+					return true;
+				}
+				queueOfTasks.put(r);
+			}
+		}
+		if (accepted && shutdown && threads.length == 0 && queueOfTasks.remove(r)) {
+			// Lost a race with shutdown and no worker is left to run it
+			reject(r);
+			return false;
+		}
+		if (accepted) {
+			growIfBusy();
+			if (mode == Mode.WORK_STEALING) {
+				wakeIdleWorker();
+			}
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Stops accepting new tasks. Tasks already queued still run, and the 
+	 * workers exit once the queue is empty. Tasks added afterwards are 
+	 * rejected.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		synchronized (idleLock) {
+			idleLock.notifyAll();
+		}
+		synchronized (workerLock) {
+			workerLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return whether shutdown() has been called
+	 */
+	public boolean isShutdown() {
+		return shutdown;
+	}
+	
+	/**
+	 * Waits for all queued and running tasks to finish after shutdown().
+	 * @param timeout How long to wait at most.
+	 * @param unit Unit of the timeout.
+	 * @return true if the pool terminated, false if the timeout passed first
+	 * @throws InterruptedException 
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (workerLock) {
+			while (!isTerminated()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(workerLock, remaining);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * @return whether the pool is shut down and every task has finished
+	 */
+	public boolean isTerminated() {
+		return shutdown && threads.length == 0 && tasksInFlight.get() == 0;
+	}
+	
+	/**
+	 * Starts another worker if more tasks are waiting than there are idle 
+	 * workers to take them, and the pool is below its maximum size.
+	 */
+	private void growIfBusy() {
+		int size = threads.length;
+		if (size < maxSize && queueOfTasks.size() > size - activeThreads.get()) {
+			addWorker();
+		}
+	}
+	
+	private void addWorker() {
+		WorkerThread worker;
+		synchronized (workerLock) {
+			if (shutdown || threads.length >= maxSize) {
+				return;
+			}
+			worker = new WorkerThread(this);
+			WorkerThread[] grown = new WorkerThread[threads.length + 1];
+			System.arraycopy(threads, 0, grown, 0, threads.length);
+			grown[threads.length] = worker;
+			threads = grown;
+		}
+		worker.start();
+	}
+	
+	/**
+	 * Removes an idle worker from the pool if it is above its core size or 
+	 * shutting down.
+	 * @return whether the worker should exit
+	 */
+	private boolean retire(WorkerThread worker, boolean force) {
+		synchronized (workerLock) {
+			if (!force && threads.length <= coreSize) {
+				return false;
+			}
+			WorkerThread[] shrunk = new WorkerThread[threads.length - 1];
+			int j = 0;
+			for (WorkerThread w : threads) {
+				if (w != worker) {
+					shrunk[j++] = w;
+				}
+			}
+			threads = shrunk;
+			if (isTerminated()) {
+				workerLock.notifyAll();
+			}
+		}
+		// Hand anything left on its deque to the others
+		Runnable orphan;
+		while ((orphan = worker.localTasks.pollFirst()) != null) {
+			if (threads.length == 0 || !queueOfTasks.offer(orphan)) {
+				runTask(orphan);
+			}
+		}
+		// A task queued while this worker was leaving found it idle and added
+		// no worker; with no worker left it would wait for the next submit
+		if (!shutdown && !queueOfTasks.isEmpty()) {
+			growIfBusy();
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs the task on a thread of its own once it is within the in-flight limit.
+	 */
+	private boolean startTask(final Runnable r) throws InterruptedException {
+		if (taskPermits != null) {
+			if (rejectionPolicy == RejectionPolicy.BLOCK) {
+				taskPermits.acquire();
+			} else if (!taskPermits.tryAcquire()) {
+				reject(r);
+				return false;
+			}
+		}
+		tasksInFlight.incrementAndGet();
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					runTask(r);
+				} finally {
+					taskFinished();
+				}
+			}
+		};
+		try {
+			startThread(task);
+		} catch (RuntimeException e) {
+			taskFinished();
+			throw e;
+		}
+		return true;
+	}
+	
+	private void taskFinished() {
+		if (taskPermits != null) {
+			taskPermits.release();
+		}
+		if (tasksInFlight.decrementAndGet() == 0 && shutdown) {
+			synchronized (workerLock) {
+				workerLock.notifyAll();
+			}
+		}
+	}
+	
+	private static void startThread(Runnable task) {
+		if (START_VIRTUAL_THREAD != null) {
+			try {
+				START_VIRTUAL_THREAD.invoke(null, task);
+				return;
+			} catch (Exception e) {
+				// Fall back to a platform thread
+			}
+		}
+		new Thread(task).start();
+	}
+	
+	private static Method findStartVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return whether THREAD_PER_TASK pools run their tasks on virtual threads
+	 */
+	public static boolean hasVirtualThreads() {
+		return START_VIRTUAL_THREAD != null;
+	}
+	
+	/**
+	 * Runs one task, counting it as active.
+	 */
+	void runTask(Runnable task) {
+		activeThreads.incrementAndGet();
+		try {
+			task.run();
+		} catch (Exception e) {
+			System.out.println(e);
+		} finally {
+			activeThreads.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Waits for and returns the next task for the given worker.
+	 * @return the task, or null once the worker has been retired and must exit
+	 */
+	Runnable nextTask(WorkerThread worker) throws InterruptedException {
+		long idleSince = System.nanoTime();
+		while (true) {
+			Runnable task;
+			if (mode != Mode.WORK_STEALING) {
+				task = queueOfTasks.poll(Math.min(keepAliveMillis, IDLE_WAIT_MILLIS), TimeUnit.MILLISECONDS);
+			} else {
+				task = findTask(worker);
+				if (task == null) {
+					task = awaitTask(worker);
+				}
+			}
+			if (task != null) {
+				return task;
+			}
+			
+			if (shutdown && getQueueDepth() == 0) {
+				retire(worker, true);
+				return null;
+			}
+			if (System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(keepAliveMillis) 
+					&& retire(worker, false)) {
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Sleeps until a task is submitted or the idle wait passes.
+	 */
+	private Runnable awaitTask(WorkerThread worker) throws InterruptedException {
+		synchronized (idleLock) {
+			idleWorkers++;
+			try {
+				// Look again now that submitters can see us, so no wake-up is lost
+				Runnable task = findTask(worker);
+				if (task == null && !shutdown) {
+					idleLock.wait(Math.min(keepAliveMillis, IDLE_WAIT_MILLIS));
+				}
+				return task;
+			} finally {
+				idleWorkers--;
+			}
+		}
+	}
+	
+	/**
+	 * Own deque newest first, then the shared queue, then the oldest task of 
+	 * another worker, starting from a random one.
+	 */
+	private Runnable findTask(WorkerThread worker) {
+		Runnable task = worker.localTasks.pollLast();
+		if (task != null) {
+			return task;
 		}
+		task = queueOfTasks.poll();
+		if (task != null) {
+			return task;
+		}
+		WorkerThread[] victims = threads;
+		if (victims.length == 0) {
+			return null;
+		}
+		int start = ThreadLocalRandom.current().nextInt(victims.length);
+		for (int i = 0; i < victims.length; i++) {
+			WorkerThread victim = victims[(start + i) % victims.length];
+			if (victim != worker) {
+				task = victim.localTasks.pollFirst();
+				if (task != null) {
+					return task;
+				}
+			}
+		}
+		return null;
+	}
+	
+	private void wakeIdleWorker() {
+		if (idleWorkers > 0) {
+			synchronized (idleLock) {
+				idleLock.notify();
+			}
+		}
+	}
+	
+	private void reject(Runnable r) {
+		rejectedTasks.incrementAndGet();
+		if (r instanceof Rejectable) {
+			try {
+				((Rejectable) r).reject();
+			} catch (Exception e) {
+				System.out.println(e);
+			}
+		}
+	}
+	
+	/**
+	 * @return number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		if (mode == Mode.THREAD_PER_TASK) {
+			// Tasks start at once; report those that have not begun running yet
+			return Math.max(0, tasksInFlight.get() - activeThreads.get());
+		}
+		int depth = queueOfTasks.size();
+		if (mode == Mode.WORK_STEALING) {
+			for (WorkerThread worker : threads) {
+				depth += worker.localTasks.size();
+			}
+		}
+		return depth;
+	}
+	
+	/**
+	 * @param lane LANE_HIGH, LANE_NORMAL or LANE_LOW
+	 * @return number of tasks waiting in the lane; in modes other than 
+	 * PRIORITY_LANES every task counts as LANE_NORMAL
+	 */
+	public int getLaneDepth(int lane) {
+		if (mode == Mode.PRIORITY_LANES) {
+			return ((PriorityLaneQueue) queueOfTasks).size(lane);
+		}
+		return lane == LANE_NORMAL ? getQueueDepth() : 0;
+	}
+	
+	/**
+	 * @return how this pool schedules its tasks
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * @return maximum number of waiting tasks, Integer.MAX_VALUE if unbounded
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	
+	/**
+	 * @return number of threads currently running a task
+	 */
+	public int getActiveThreads() {
+		return activeThreads.get();
+	}
+	
+	/**
+	 * @return number of worker threads currently in the pool
+	 */
+	public int getPoolSize() {
+		return threads.length;
+	}
+	
+	/**
+	 * @return number of tasks refused or dropped because the queue was full
+	 */
+	public long getRejectedTasks() {
+		return rejectedTasks.get();
 	}
 }
 
@@ -74,42 +676,37 @@ public class ThreadPool {
  */
 class WorkerThread extends Thread {
 	protected ThreadPool myThreadPool;
+	// Tasks this worker submitted in work-stealing mode
+	final ConcurrentLinkedDeque<Runnable> localTasks = new ConcurrentLinkedDeque<Runnable>();
 
 	/**
 	 * @param o the thread pool 
 	 */
 	WorkerThread(ThreadPool o)
 	{
-		// implement me
 		this.myThreadPool = o;
 	}
 
 	/**
-	 * Scan and execute tasks.
+	 * Scan and execute tasks until the pool retires this worker.
 	 */
 	public void run()
 	{
-		// implement me
 		Runnable first;
 
 		while(true){
-			synchronized (myThreadPool.queueOfTasks){
-				while(myThreadPool.queueOfTasks.isEmpty()){
-					try{
-						myThreadPool.queueOfTasks.wait();
-					} catch (InterruptedException e) {
-						System.out.println(e);
-					}
-				}
-
-				first = myThreadPool.queueOfTasks.pollFirst();
-
-				try{
-					first.run();
-				} catch (Exception e){
-					System.out.println(e);
-				}
+			try{
+				first = myThreadPool.nextTask(this);
+			} catch (InterruptedException e) {
+				System.out.println(e);
+				continue;
 			}
+			if (first == null) {
+				return;
+			}
+
+			// Run outside of any queue lock so the other workers keep going
+			myThreadPool.runTask(first);
 		}
 	}
 }
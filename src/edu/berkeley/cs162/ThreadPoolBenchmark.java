@@ -0,0 +1,135 @@
+/**
+ * Benchmark of ThreadPool throughput
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures ThreadPool throughput for tasks that block, like a handler 
+ * waiting on the store. Each task sleeps for a fixed time, so with workers 
+ * running concurrently N workers should finish close to N times as many 
+ * tasks per second as one worker.
+ * 
+ * It then compares the shared queue with work stealing for short tasks that 
+ * fan out sub-tasks, the way a coordinator sends to several replicas.
+ * 
+ * USAGE: ThreadPoolBenchmark [taskMillis] [tasksPerWorker]
+ */
+public class ThreadPoolBenchmark {
+	static final int[] WORKERS = { 1, 2, 4, 8, 16, 32 };
+	
+	public static void main(String[] args) throws InterruptedException {
+		long taskMillis = 10;
+		int tasksPerWorker = 50;
+		if (args.length > 0) {
+			taskMillis = Long.parseLong(args[0]);
+		}
+		if (args.length > 1) {
+			tasksPerWorker = Integer.parseInt(args[1]);
+		}
+		
+		double baseline = 0;
+		for (int workers : WORKERS) {
+			double throughput = throughput(workers, workers * tasksPerWorker, taskMillis);
+			if (workers == 1) {
+				baseline = throughput;
+			}
+			System.out.println("workers=" + workers + " tasks/s=" + Math.round(throughput)
+					+ " speedup=" + Math.round(throughput / baseline * 10) / 10.0);
+		}
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (ThreadPool.Mode mode : new ThreadPool.Mode[] { ThreadPool.Mode.SHARED_QUEUE, ThreadPool.Mode.WORK_STEALING }) {
+			// Warm up before measuring
+			fanOutThroughput(mode, threads, 20000, 8);
+			System.out.println("mode=" + mode + " workers=" + threads
+					+ " subtasks/s=" + Math.round(fanOutThroughput(mode, threads, 100000, 8)));
+		}
+	}
+	
+	private static double throughput(int workers, int tasks, final long taskMillis) throws InterruptedException {
+		ThreadPool pool = new ThreadPool(workers);
+		final CountDownLatch done = new CountDownLatch(tasks);
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(taskMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < tasks; i++) {
+			pool.addToQueue(task);
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		return tasks / (elapsed / 1e9);
+	}
+	
+	private static double fanOutThroughput(ThreadPool.Mode mode, int workers, int roots, final int fanOut) throws InterruptedException {
+		final ThreadPool pool = new ThreadPool(workers, Integer.MAX_VALUE, ThreadPool.RejectionPolicy.BLOCK, mode);
+		final CountDownLatch done = new CountDownLatch(roots * fanOut);
+		final Runnable subtask = new Runnable() {
+			public void run() {
+				// A little work, like encoding one replica's message
+				int x = 0;
+				for (int i = 0; i < 200; i++) {
+					x = x * 31 + i;
+				}
+				if (x != 42) {
+					done.countDown();
+				}
+			}
+		};
+		Runnable root = new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < fanOut; i++) {
+						pool.addToQueue(subtask);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < roots; i++) {
+			pool.addToQueue(root);
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		return roots * fanOut / (elapsed / 1e9);
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Test for tasks stranded by an elastic ThreadPool
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checks that an elastic ThreadPool with no core workers never strands a
+ * task: tasks are submitted right around the moment the only worker's
+ * keep-alive runs out, and each must still run without waiting for a
+ * later submit.
+ *
+ * USAGE: ThreadPoolTest [rounds]
+ */
+public class ThreadPoolTest {
+	static final long KEEP_ALIVE_MILLIS = 10;
+	// Long enough that only a stranded task misses it
+	static final long RUN_WITHIN_MILLIS = 1000;
+
+	public static void main(String[] args) throws InterruptedException {
+		int rounds = 2000;
+		if (args.length > 0) {
+			rounds = Integer.parseInt(args[0]);
+		}
+
+		ThreadPool pool = new ThreadPool(0, 1, KEEP_ALIVE_MILLIS, Integer.MAX_VALUE,
+				ThreadPool.RejectionPolicy.BLOCK, ThreadPool.Mode.SHARED_QUEUE);
+		int stranded = 0;
+		for (int i = 0; i < rounds; i++) {
+			// Sweep submits from 2 ms before to 2 ms after the worker expires
+			long offsetMicros = (i % 201) * 20 - 2000;
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_MILLIS) + TimeUnit.MICROSECONDS.toNanos(offsetMicros));
+
+			final CountDownLatch ran = new CountDownLatch(1);
+			pool.addToQueue(new Runnable() {
+				public void run() {
+					ran.countDown();
+				}
+			});
+			if (!ran.await(RUN_WITHIN_MILLIS, TimeUnit.MILLISECONDS)) {
+				stranded++;
+				System.out.println("round " + i + ": task stranded in the queue");
+				// A stranded task waits for the next submit to start a worker
+				pool.addToQueue(new Runnable() {
+					public void run() {
+					}
+				});
+				ran.await();
+			}
+		}
+		pool.shutdown();
+
+		System.out.println("rounds=" + rounds + " stranded=" + stranded);
+		if (stranded > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * W-TinyLFU eviction policy
+ * 
+ * Copyright (c) 2011, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * W-TinyLFU eviction. New entries land in a small LRU window (1% of the 
+ * capacity). Entries pushed out of the window only enter the main space if 
+ * the FrequencySketch says they are accessed more often than the entry the 
+ * main space would evict instead. The main space is a segmented LRU: entries 
+ * start in probation and are promoted to the protected queue (80% of the main 
+ * space) on their next hit.
+ * 
+ * A scan of keys that are read once therefore only churns the window and 
+ * the keys hot before the scan stay cached.
+ * 
+ * Queue sizes are tracked in entry weight, so the same split applies to 
+ * byte-budgeted caches.
+ */
+class TinyLFUPolicy<K, V> extends EvictionPolicy<K, V> {
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+	private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+	private final AccessQueue<K, V> protectedQueue = new AccessQueue<K, V>();
+	private FrequencySketch sketch;
+	private int sketchCapacity;
+	private int entryCount = 0;
+
+	private final long capacity;
+	private final long windowMax;
+	private final long protectedMax;
+	private long windowSize = 0;
+	private long probationSize = 0;
+	private long protectedSize = 0;
+
+	/**
+	 * @param capacity the maximum total weight of the owning segment
+	 */
+	TinyLFUPolicy(long capacity) {
+		this.capacity = capacity;
+		this.windowMax = Math.max(1, capacity / 100);
+		this.protectedMax = (capacity - windowMax) * 80 / 100;
+		this.sketchCapacity = (int) Math.min(capacity, 1024);
+		this.sketch = new FrequencySketch(sketchCapacity);
+	}
+
+	@Override
+	void recordInsert(Entry<K, V> entry) {
+		if (++entryCount > sketchCapacity && sketchCapacity < (1 << 30)) {
+			// The sketch should have about one counter per cached entry; grow it, 
+			// keeping the counts seen so far
+			sketchCapacity *= 2;
+			sketch = new FrequencySketch(sketchCapacity, sketch);
+		}
+		sketch.increment(entry.key);
+		entry.queue = WINDOW;
+		window.linkLast(entry);
+		windowSize += entry.weight;
+		
+		// While there is free room, let window overflow straight into the main space
+		while (windowSize > windowMax && windowSize + probationSize + protectedSize <= capacity) {
+			Entry<K, V> first = window.peekFirst();
+			AccessQueue.unlink(first);
+			windowSize -= first.weight;
+			linkProbation(first);
+		}
+	}
+
+	@Override
+	void recordAccess(Entry<K, V> entry) {
+		sketch.increment(entry.key);
+		switch (entry.queue) {
+		case WINDOW:
+			window.moveToLast(entry);
+			break;
+		case PROBATION:
+			AccessQueue.unlink(entry);
+			probationSize -= entry.weight;
+			entry.queue = PROTECTED;
+			protectedQueue.linkLast(entry);
+			protectedSize += entry.weight;
+			while (protectedSize > protectedMax && !protectedQueue.isEmpty()) {
+				Entry<K, V> demoted = protectedQueue.peekFirst();
+				AccessQueue.unlink(demoted);
+				protectedSize -= demoted.weight;
+				linkProbation(demoted);
+			}
+			break;
+		default:
+			protectedQueue.moveToLast(entry);
+		}
+	}
+
+	@Override
+	void recordUpdate(Entry<K, V> entry, int oldWeight) {
+		adjustSize(entry.queue, entry.weight - oldWeight);
+		recordAccess(entry);
+	}
+
+	@Override
+	void recordRemoval(Entry<K, V> entry) {
+		AccessQueue.unlink(entry);
+		adjustSize(entry.queue, -entry.weight);
+		entryCount--;
+	}
+
+	@Override
+	Entry<K, V> evict() {
+		Entry<K, V> victim = probation.peekFirst();
+		if (victim == null) {
+			victim = protectedQueue.peekFirst();
+		}
+		
+		if (windowSize > windowMax || victim == null) {
+			// The window LRU must leave the window: admit it only if it beats the main victim
+			Entry<K, V> candidate = window.peekFirst();
+			AccessQueue.unlink(candidate);
+			windowSize -= candidate.weight;
+			if (victim == null || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+				entryCount--;
+				return candidate;
+			}
+			linkProbation(candidate);
+		}
+		
+		AccessQueue.unlink(victim);
+		adjustSize(victim.queue, -victim.weight);
+		entryCount--;
+		return victim;
+	}
+
+	private void linkProbation(Entry<K, V> entry) {
+		entry.queue = PROBATION;
+		probation.linkLast(entry);
+		probationSize += entry.weight;
+	}
+
+	private void adjustSize(int queue, long delta) {
+		if (queue == WINDOW) {
+			windowSize += delta;
+		} else if (queue == PROBATION) {
+			probationSize += delta;
+		} else {
+			protectedSize += delta;
+		}
+	}
+}